@@ -0,0 +1,165 @@
+package com.rpath.management.windows.streaming;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StreamTokenizer;
+
+/**
+ * Compares the IPC command tokenizer with the StreamTokenizer based one it
+ * replaced, by feeding registry setkey lines to processors that ignore the
+ * commands.
+ *
+ * Build and run with "ant bench". Results are in MB of command input per
+ * second; the old tokenizer can't read more than 10 arguments per command.
+ */
+public class TokenizerBenchmark {
+	private static final int WARMUP = 1;
+	private static final int ROUNDS = 3;
+	
+	/**
+	 * The current tokenizer, with commands discarded.
+	 */
+	private static class NullProcessor extends IPC {
+		public NullProcessor(InputStream input) {
+			super(input, null, null);
+		}
+		
+		protected IPC createWorker(PrintStream output) {
+			return null;
+		}
+		
+		protected void processCommand() {
+		}
+	}
+	
+	/**
+	 * The tokenizer IPC used before, reading a char at a time through a
+	 * StreamTokenizer and concatenating every byte onto the argument.
+	 */
+	private static class StreamTokenizerProcessor {
+		private static final int COMMAND_SIZE = 10;
+		private static final byte QUOTE = (byte)'"';
+		private static final byte SPACE = (byte)' ';
+		private static final byte NEWLINE = (byte)'\n';
+		
+		private int pos;
+		private boolean inQuotedString;
+		private StreamTokenizer in;
+		private String[] command;
+		
+		public StreamTokenizerProcessor(InputStream input) {
+			this.reset();
+			
+			Reader r = new BufferedReader(new InputStreamReader(input));
+			this.in = new StreamTokenizer(r);
+			this.in.resetSyntax();
+			this.in.eolIsSignificant(true);
+		}
+		
+		public void run() throws IOException {
+			while (this.in.nextToken() != StreamTokenizer.TT_EOF) {
+				switch(this.in.ttype) {
+					case SPACE:
+						this.handleSpace();
+						break;
+					case QUOTE:
+						this.inQuotedString = !this.inQuotedString;
+						break;
+					case NEWLINE:
+						this.reset();
+						break;
+					default:
+						this.append();
+				}
+			}
+		}
+		
+		private void append() {
+			byte [] ba = {(byte)this.in.ttype, };
+			this.command[this.pos] = this.command[this.pos].concat(new String(ba));
+		}
+		
+		private void handleSpace() {
+			if (!this.inQuotedString) {
+				this.pos++;
+				this.command[this.pos] = new String();
+			} else {
+				this.append();
+			}
+		}
+		
+		private void reset() {
+			this.pos = 0;
+			this.inQuotedString = false;
+			this.command = new String[COMMAND_SIZE];
+			this.command[this.pos] = new String();
+		}
+	}
+	
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		run("5 x 64 KB values", commands(1, 5, 64 * 1024));
+		run("5 x 256 B values, 2000 cmds", commands(2000, 5, 256));
+		run("10000 x 32 B values", commands(1, 10000, 32));
+	}
+	
+	/**
+	 * Build setkey commands for a REG_MULTI_SZ value, quoted the way the
+	 * Python client quotes them.
+	 */
+	private static byte[] commands(int count, int values, int size) {
+		StringBuilder value = new StringBuilder();
+		for (int i=0; i<size; i++)
+			value.append((char)('a' + i % 26));
+		
+		StringBuilder line = new StringBuilder("\"registry\" \"setkey\" \"HKEY_LOCAL_MACHINE\\\\SOFTWARE\\\\Bench\" \"Value\"");
+		for (int i=0; i<values; i++)
+			line.append(" \"").append(value).append('"');
+		line.append('\n');
+		
+		StringBuilder input = new StringBuilder();
+		for (int i=0; i<count; i++)
+			input.append(line);
+		return input.toString().getBytes();
+	}
+	
+	private static void run(String name, byte[] input) throws Exception {
+		String old;
+		try {
+			old = format(input.length, time(input, true));
+		} catch (ArrayIndexOutOfBoundsException e) {
+			old = "AIOOBE";
+		}
+		String current = format(input.length, time(input, false));
+		System.out.println(name + ": " + old + " -> " + current);
+	}
+	
+	/**
+	 * @return best time of a round in nanoseconds
+	 */
+	private static long time(byte[] input, boolean old) throws Exception {
+		long best = Long.MAX_VALUE;
+		for (int i=0; i<WARMUP + ROUNDS; i++) {
+			long start = System.nanoTime();
+			if (old)
+				new StreamTokenizerProcessor(new ByteArrayInputStream(input)).run();
+			else
+				new NullProcessor(new ByteArrayInputStream(input)).run();
+			long elapsed = System.nanoTime() - start;
+			if (i >= WARMUP)
+				best = Math.min(best, elapsed);
+		}
+		return best;
+	}
+	
+	private static String format(int bytes, long nanos) {
+		return String.format("%.1f MB/s", bytes / (1024.0 * 1024.0) / (nanos / 1e9));
+	}
+}
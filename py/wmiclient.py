@@ -6,6 +6,7 @@ import sys
 import time
 import errno
 import socket
+import struct
 import itertools
 import subprocess
 from collections import namedtuple
@@ -306,11 +307,16 @@ class InteractiveCommand(AbstractCommand):
         self._callback.debug(line)
         return line
 
+    @staticmethod
+    def _quote(arg):
+        arg = ('%s' % (arg, )).replace('\\', '\\\\').replace('"', '\\"')
+        return '"%s"' % arg
+
     def _run(self, args):
         if not self._p:
             self._createProcess()
 
-        cmd = ' '.join([ '"%s"' % x for x in args ])
+        cmd = ' '.join([ self._quote(x) for x in args ])
         self._callback.debug(cmd)
 
         self._write(cmd)
@@ -325,10 +331,7 @@ class InteractiveCommand(AbstractCommand):
         error = []
         if line.startswith(self._ERROR):
             error.append(line[len(self._ERROR)+1:])
-            if error[-1].startswith('0x'):
-                rc = int(error[-1], 16)
-            elif error[-1][0].isdigit():
-                rc = int(error[-1][0])
+            rc = self._errorCode(error[-1])
         elif line.startswith(self._START_OUTPUT):
             rc = int(line[len(self._START_OUTPUT):])
 
@@ -336,7 +339,13 @@ class InteractiveCommand(AbstractCommand):
             while not line.startswith(self._MARKER):
                 output.append(line)
                 line = self._readline()
-            assert line == self._END_OUTPUT
+
+            # Streamed output may be cut short by an error.
+            if line.startswith(self._ERROR):
+                error.append(line[len(self._ERROR)+1:])
+                rc = self._errorCode(error[-1])
+            else:
+                assert line == self._END_OUTPUT
         elif line.startswith(self._START_STACKTRACE):
             line = self._readline()
             while not line.startswith(self._MARKER):
@@ -363,6 +372,242 @@ class InteractiveCommand(AbstractCommand):
                     raise
             self._p = None
 
+    @staticmethod
+    def _errorCode(error):
+        """
+        Get the return code from the text of an ERROR line, -1 if it isn't
+        a number.
+        """
+
+        try:
+            if error.startswith('0x'):
+                return int(error, 16)
+            elif error[:1].isdigit():
+                return int(error[0])
+        except ValueError:
+            pass
+        return -1
+
+
+class PipelinedCommand(InteractiveCommand):
+    """
+    Class for running several commands at once over the pipelined protocol
+    of the interactive wmic. Every request is sent with an id and responses
+    come back tagged with that id, in the order the commands finish.
+    """
+
+    _PROTOCOL = '2'
+
+    def __init__(self, *args, **kwargs):
+        InteractiveCommand.__init__(self, *args, **kwargs)
+
+        self._pipelined = False
+        self._nextId = 0
+        self._lastId = None
+        self._results = {}
+
+    def _createProcess(self):
+        InteractiveCommand._createProcess(self)
+
+        self._pipelined = False
+        self._results = {}
+
+        InteractiveCommand._run(self, ('protocol', self._PROTOCOL))
+        rc, output, error = self._parseOutput()
+        if rc:
+            raise WMIErrorCodes.error(WMICResults(self._authInfo.host, rc,
+                output, error))
+        self._pipelined = True
+
+    def _readline(self):
+        line = InteractiveCommand._readline(self)
+
+        # Strip the request id from response markers.
+        if self._pipelined and line.startswith(self._MARKER):
+            self._lastId, rest = line[len(self._MARKER):].split(' ', 1)
+            line = self._MARKER + rest
+        return line
+
+    def submit(self, *args):
+        """
+        Send a command without waiting for its response.
+        @return request id to pass to wait or cancel
+        """
+
+        if not self._p:
+            self._createProcess()
+
+        self._nextId += 1
+        reqId = str(self._nextId)
+        InteractiveCommand._run(self, (reqId, ) + args)
+        return reqId
+
+    def wait(self, reqId):
+        """
+        Wait for the response to a request, holding on to any other
+        responses that arrive first.
+        @return WMICResults(rc, stdout, stderr)
+        """
+
+        while reqId not in self._results:
+            rc, output, error = self._parseOutput()
+            self._results[self._lastId] = WMICResults(self._authInfo.host,
+                rc, output, error)
+        return self._results.pop(reqId)
+
+    def cancel(self, reqId):
+        """
+        Abandon a request that hasn't completed yet. The request's own
+        response will be an error.
+        """
+
+        return self.wait(self.submit('cancel', reqId))
+
+    def execute(self, *args):
+        result = self.wait(self.submit(*args))
+
+        self._callback.debug('\n'.join(args))
+        self._callback.debug('\n'.join(result.stderr))
+
+        return result
+
+
+class FramedCommand(PipelinedCommand):
+    """
+    Class for running pipelined commands with responses sent as length
+    prefixed binary frames, so output lines are passed through exactly as
+    the server sent them.
+    """
+
+    _PROTOCOL = '3'
+
+    # length, type, status, id length
+    _LENGTH = struct.Struct('>I')
+    _HEADER = struct.Struct('>cih')
+
+    _START = 'S'
+    _DATA = 'D'
+    _END = 'E'
+    _FRAME_ERROR = 'X'
+    _TRACE = 'T'
+
+    def __init__(self, *args, **kwargs):
+        PipelinedCommand.__init__(self, *args, **kwargs)
+        self._framed = False
+
+    def _createProcess(self):
+        self._framed = False
+        PipelinedCommand._createProcess(self)
+        self._framed = True
+
+    def _read(self, size):
+        data = ''
+        while len(data) < size:
+            chunk = self._p.stdout.read(size - len(data))
+            if not chunk:
+                raise IOError(errno.EPIPE, 'wmic exited')
+            data += chunk
+        return data
+
+    def _readFrame(self):
+        length, = self._LENGTH.unpack(self._read(self._LENGTH.size))
+        frame = self._read(length)
+
+        kind, status, idLength = self._HEADER.unpack_from(frame)
+        start = self._HEADER.size
+        reqId = frame[start:start + idLength]
+        payload = frame[start + idLength:]
+        return kind, status, reqId, payload
+
+    def _parseOutput(self):
+        if not self._framed:
+            return PipelinedCommand._parseOutput(self)
+
+        rc = -1
+        output = []
+        error = []
+        while True:
+            kind, status, self._lastId, payload = self._readFrame()
+            if kind == self._START:
+                rc = status
+            elif kind == self._DATA:
+                output.append(payload)
+            elif kind == self._TRACE:
+                error.extend(payload.splitlines())
+            elif kind == self._FRAME_ERROR:
+                # The status is sent as a signed int, read HRESULTs unsigned
+                # as text mode does.
+                rc = status
+                if rc != -1:
+                    rc &= 0xffffffff
+                error.append(payload)
+                break
+            elif kind == self._END:
+                break
+
+        return rc, output, error
+
+
+class DaemonCommand(InteractiveCommand):
+    """
+    Class for communicating with a running wmicd daemon over localhost TCP.
+    """
+
+    def __init__(self, authInfo, callback, address=('127.0.0.1', 8135)):
+        InteractiveCommand.__init__(self, authInfo, callback)
+        self._address = address
+        self._sock = None
+
+    def _createProcess(self):
+        self._callback.debug('connecting to %s:%s' % self._address)
+
+        self._sock = socket.create_connection(self._address)
+        self._p = self._sock.makefile('r+b', 0)
+
+        info = self._authInfo
+        self._run(('connect', info.host, info.domain, info.user,
+            info.password))
+        rc, output, error = self._parseOutput()
+        if rc:
+            self.close()
+            raise WMIErrorCodes.error(WMICResults(info.host, rc, output,
+                error))
+
+    def _write(self, data):
+        try:
+            self._p.write(data)
+        except socket.error, e:
+            # Reconnect if the daemon went away.
+            if e.errno in (errno.EPIPE, errno.ECONNRESET):
+                self._createProcess()
+                self._p.write(data)
+            else:
+                raise
+
+    def _readline(self):
+        line = self._p.readline().strip()
+        self._callback.debug(line)
+        return line
+
+    def _run(self, args):
+        if not self._p:
+            self._createProcess()
+
+        cmd = ' '.join([ self._quote(x) for x in args ])
+        self._callback.debug(cmd)
+
+        self._write(cmd + '\n')
+
+    def close(self):
+        if self._sock:
+            try:
+                self._p.close()
+                self._sock.close()
+            except socket.error:
+                pass
+            self._sock = None
+            self._p = None
+
 
 class WMIClient(object):
     """
@@ -371,14 +616,23 @@ class WMIClient(object):
 
     _ErrorClass = WMIErrorCodes
 
-    def __init__(self, authInfo, callback=None, interactive=True):
+    def __init__(self, authInfo, callback=None, interactive=True,
+        daemonAddress=None, pipelined=False, framed=False):
+
         self._authInfo = authInfo
 
         if callback is None:
             callback = WMICallback(self._authInfo)
         self._callback = callback
 
-        if interactive:
+        if daemonAddress:
+            self._cmd = DaemonCommand(self._authInfo, self._callback,
+                daemonAddress)
+        elif interactive and framed:
+            self._cmd = FramedCommand(self._authInfo, self._callback)
+        elif interactive and pipelined:
+            self._cmd = PipelinedCommand(self._authInfo, self._callback)
+        elif interactive:
             self._cmd = InteractiveCommand(self._authInfo, self._callback)
         else:
             self._cmd = DefaultCommand(self._authInfo, self._callback)
@@ -409,6 +663,74 @@ class WMIClient(object):
     def serviceQuery(self, service):
         return self._service('getstatus', service)
 
+    def serviceAwait(self, service, state, timeout):
+        """
+        Wait for a service to reach a state such as 'Running' or 'Stopped'.
+        Returns as soon as the change happens; a timeout is reported as
+        WAIT_TIMEOUT.
+        @param timeout: seconds to wait
+        """
+
+        return self._request('service', 'await', service, state,
+                             '%s' % timeout)
+
+    def serviceWatch(self, timeout, *services):
+        """
+        Collect service state changes for a while.
+        @param timeout: seconds to watch for
+        @param services: services to watch, all services if none are given
+        @return result, [(name, state, previousState), ...]
+        """
+
+        result = self._request('service', 'watch', '%s' % timeout, *services)
+
+        events = [ tuple(x.split('\t')[:3]) for x in result.output ]
+        return result, events
+
+    def serviceStartAll(self, *services):
+        """
+        Start several services in dependency order.
+        @return result, {name: status}
+        """
+
+        return self._serviceBulk('startall', services)
+
+    def serviceStopAll(self, *services):
+        """
+        Stop several services, dependents first.
+        @return result, {name: status}
+        """
+
+        return self._serviceBulk('stopall', services)
+
+    def _serviceBulk(self, action, services):
+        result = self._request('service', action, *services)
+
+        status = {}
+        for line in result.output:
+            name, _, msg = line.partition('\t')
+            status[name] = msg
+        return result, status
+
+    def serviceSnapshot(self, *services):
+        """
+        Get the state of several services, or of all services, in one
+        request.
+        @return result, {name: (state, startMode, processId, exitCode)}
+        """
+
+        result = self._request('service', 'snapshot', *services)
+
+        states = {}
+        for line in result.output:
+            fields = line.split('\t')
+            fields.extend([ '' ] * (5 - len(fields)))
+            name, state, startMode, processId, exitCode = fields[:5]
+            states[name] = (state, startMode,
+                processId and int(processId) or 0,
+                exitCode and int(exitCode) or 0)
+        return result, states
+
     def queryNetwork(self):
         result = self._query('network')
 
@@ -443,6 +765,24 @@ class WMIClient(object):
         else:
             raise WMIUnknownError, 'Found incorrect number of uuids'
 
+    def queryWQL(self, query, *properties):
+        result = self._request('query', 'wql', query, *properties)
+
+        rows = [ x.split('\t') for x in result.output ]
+        return result, rows
+
+    def querySoftware(self):
+        """
+        List installed software from the registry Uninstall keys.
+        @return result, [(displayName, displayVersion, publisher,
+                          installDate, keyPath), ...]
+        """
+
+        result = self._query('software')
+
+        products = [ tuple(x.split('\t')) for x in result.output ]
+        return result, products
+
     def registryGetKey(self, keyPath, key, ignoreExceptions=False):
         result = self._cmd.execute('registry', 'getkey', keyPath, key)
 
@@ -450,13 +790,113 @@ class WMIClient(object):
             raise self._errors.get(result)
         return result
 
-    def registrySetKey(self, keyPath, key, value, dtype='REG_MULTI_SZ'):
+    def registryGetKeys(self, items):
+        """
+        Read several registry values in one request.
+        @param items: iterable of (keyPath, key) pairs
+        @return result, {(keyPath, key): (rc, values)}
+        """
+
+        args = []
+        for keyPath, key in items:
+            args.extend((keyPath, key))
+
+        result = self._request('registry', 'getkeys', *args)
+
+        values = {}
+        for line in result.output:
+            fields = line.split('\t')
+            keyPath, key, rc = fields[:3]
+            values[(keyPath, key)] = (int(rc, 16), fields[3:])
+        return result, values
+
+    def registryWalk(self, keyPath, maxDepth=-1, include='', exclude=''):
+        """
+        Enumerate the values in a registry subtree.
+        @param maxDepth: levels of subkeys to descend into, -1 for all
+        @param include: regex values must match as keyPath\\name
+        @param exclude: regex for key paths to skip along with their subkeys
+        @return result, [(keyPath, name, type, values), ...]
+        """
+
+        result = self._request('registry', 'walk', keyPath, '%s' % maxDepth,
+            include or '', exclude or '')
+
+        entries = []
+        for line in result.output:
+            fields = line.split('\t')
+            entries.append((fields[0], fields[1], fields[2], fields[3:]))
+        return result, entries
+
+    def registrySetKey(self, keyPath, key, value, dtype=None):
+        """
+        Set a registry value. Without a dtype an existing value keeps its
+        type and a new one is created as REG_MULTI_SZ.
+        """
+
         if not isinstance(value, list):
             value = [value, ]
         if not value:
             value = ['', ]
 
-        return self._request('registry', 'setkey', keyPath, key, dtype, *value)
+        args = [ keyPath, key ]
+        if dtype:
+            args.append(dtype)
+        args.extend(value)
+        return self._request('registry', 'setkey', *args)
+
+    def registrySetKeys(self, keyPath, values, dtype=None):
+        """
+        Set several values under one key in one request.
+        @param values: dict or iterable of (key, value) pairs, each value a
+                       string
+        @param dtype: data type for all values, None to keep existing types
+        @return result, {key: (rc, values)}
+        """
+
+        if hasattr(values, 'items'):
+            values = values.items()
+
+        args = [ keyPath ]
+        if dtype:
+            args.append(dtype)
+        for key, value in values:
+            args.extend((key, value))
+
+        result = self._request('registry', 'setkeys', *args)
+
+        written = {}
+        for line in result.output:
+            fields = line.split('\t')
+            key, rc = fields[1:3]
+            written[key] = (int(rc, 16), fields[3:])
+        return result, written
+
+    def registryCache(self, ttl, keyPath=None):
+        """
+        Cache registry reads on the server side.
+        @param ttl: seconds to keep values, 0 to stop caching
+        @param keyPath: only apply the ttl to values under this key
+        """
+
+        args = [ '%s' % ttl ]
+        if keyPath:
+            args.append(keyPath)
+        return self._request('registry', 'cache', *args)
+
+    def registryStats(self):
+        """
+        Get the registry connection and cache counters.
+        @return result, {name: value}
+        """
+
+        result = self._request('registry', 'stats')
+
+        stats = {}
+        for line in result.output:
+            name, value = line.split('\t', 1)
+            stats[name] = int(value)
+        return result, stats
 
     def registryCreateKey(self, keyPath, key):
         return self._request('registry', 'createkey', keyPath, key)
@@ -464,5 +904,51 @@ class WMIClient(object):
     def processCreate(self, cmd):
         return self._request('process', 'create', cmd)
 
+    def processRun(self, cmd, timeout):
+        """
+        Run a command and wait for it to exit. A timeout is reported as
+        WAIT_TIMEOUT; the error's processExit attribute still has the pid of
+        the process that was created.
+        @param timeout: seconds to wait
+        @return result, (pid, exitStatus, elapsed seconds)
+        """
+
+        return self._processRequest('process', 'run', '%s' % timeout, cmd)
+
+    def processWait(self, pid, timeout):
+        """
+        Wait for a running process to exit. A timeout is reported as
+        WAIT_TIMEOUT. The exit status is None if the process had already
+        exited.
+        @param timeout: seconds to wait
+        @return result, (pid, exitStatus, elapsed seconds)
+        """
+
+        return self._processRequest('process', 'wait', '%s' % pid,
+            '%s' % timeout)
+
+    def _processRequest(self, *args):
+        try:
+            result = self._request(*args)
+        except WMITimeoutError, e:
+            # The timeout response still carries the process id.
+            e.processExit = self._processExit(e.result)
+            raise
+        return result, self._processExit(result)
+
+    @staticmethod
+    def _processExit(result):
+        if not result.output:
+            return None
+
+        fields = result.output[0].split('\t')
+        fields.extend([ '' ] * (3 - len(fields)))
+        pid, status, elapsed = fields[:3]
+        if status:
+            status = int(status)
+        else:
+            status = None
+        return int(pid), status, int(elapsed or 0) / 1000.0
+
     def processStatus(self, pid):
         return self._request('process', 'status', pid)
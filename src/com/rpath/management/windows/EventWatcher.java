@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2010 rPath, Inc.
+ */
+package com.rpath.management.windows;
+
+import static org.jinterop.dcom.impls.JIObjectFactory.narrowObject;
+
+import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.JIVariant;
+import org.jinterop.dcom.impls.automation.IJIDispatch;
+import org.jinterop.dcom.impls.automation.JIAutomationException;
+import org.jinterop.dcom.impls.automation.JIExcepInfo;
+
+/**
+ * Class for receiving events from a WMI notification query.
+ *
+ * Wraps the SWbemEventSource returned by ExecNotificationQuery. Long waits
+ * are split into NextEvent calls that each finish well inside the session
+ * socket timeout, and the wait gives up between calls if the thread is
+ * interrupted.
+ */
+public class EventWatcher {
+	// wbemErrTimedOut, NextEvent found no event within its timeout
+	private static final int WBEM_E_TIMED_OUT = 0x80043001;
+
+	// The session socket timeout is 5 seconds.
+	private static final long MAX_SLICE = 4000;
+
+	private IJIDispatch source = null;
+
+	/**
+	 * Constructor
+	 * @param source SWbemEventSource dispatch
+	 */
+	EventWatcher(IJIDispatch source) {
+		this.source = source;
+	}
+
+	/**
+	 * Wait for the next event.
+	 * @param timeout milliseconds to wait
+	 * @return the event object, null if none arrived in time or the thread
+	 *         was interrupted
+	 * @throws JIException
+	 */
+	public IJIDispatch nextEvent(long timeout) throws JIException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (!Thread.currentThread().isInterrupted()) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return null;
+
+			JIVariant[] results = null;
+			try {
+				Integer slice = new Integer((int)Math.min(remaining, MAX_SLICE));
+				results = this.source.callMethodA("NextEvent", new Object[] {slice, });
+			} catch (JIException e) {
+				if (!isTimeout(e))
+					throw e;
+				continue;
+			}
+			return (IJIDispatch)narrowObject(results[0].getObjectAsComObject());
+		}
+		return null;
+	}
+
+	/**
+	 * Check if a NextEvent failure only means that no event arrived. The
+	 * WMI status comes back as DISP_E_EXCEPTION with the real scode in the
+	 * exception info.
+	 * @param e exception thrown by NextEvent
+	 */
+	private static boolean isTimeout(JIException e) {
+		if (!(e instanceof JIAutomationException))
+			return false;
+		JIExcepInfo info = ((JIAutomationException)e).getExcepInfo();
+		return info != null && info.getErrorCode() == WBEM_E_TIMED_OUT;
+	}
+
+	/**
+	 * Get the instance an __InstanceOperationEvent is about.
+	 * @param event event returned by nextEvent
+	 * @param property TargetInstance or PreviousInstance
+	 * @throws JIException
+	 */
+	public static IJIDispatch getInstance(IJIDispatch event, String property) throws JIException {
+		JIVariant instance = event.get(property);
+		return (IJIDispatch)narrowObject(instance.getObjectAsComObject());
+	}
+
+	/**
+	 * Stop receiving events and release the event source.
+	 */
+	public void close() {
+		try {
+			this.source.release();
+		} catch (JIException e) {
+			// The reference is dropped on the floor and cleaned up with the session.
+		}
+	}
+}
@@ -21,6 +21,7 @@ public class ManagedSystem {
 	public Services services = null;
 	public Processes processes = null;
 	public Query query = null;
+	public Software software = null;
 
 	/**
 	 * Constructor for the creation of system connections.
@@ -51,5 +52,39 @@ public class ManagedSystem {
 		// Query instance for querying the client machine via WQL
 		this.query = new Query(this.session);
 		
+		// Software instance for listing installed software from the registry
+		this.software = new Software(this.registry);
+		
+	}
+	
+	/**
+	 * Check that the connection to the system is still usable.
+	 */
+	public boolean isAlive() {
+		try {
+			this.session.getDispatch();
+			return true;
+		} catch (JIException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @return the WMI session for this system
+	 */
+	public Session getSession() {
+		return this.session;
+	}
+	
+	/**
+	 * Tear down all connections to the system.
+	 * @throws JIException
+	 */
+	public void close() throws JIException {
+		try {
+			this.registry.close();
+		} finally {
+			this.session.closeConnection();
+		}
 	}
 }
@@ -0,0 +1,307 @@
+/**
+ * Copyright (c) 2010 rPath, Inc.
+ */
+package com.rpath.management.windows;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.common.JISystem;
+
+/**
+ * Class for sharing ManagedSystem connections between operations.
+ *
+ * Systems are keyed by host, domain and user. A borrowed system is used by
+ * one caller at a time and handed back with release. Idle systems are
+ * evicted least recently used first when the pool is full, and closed by a
+ * background reaper once they have been idle longer than the idle timeout.
+ */
+public class ManagedSystemPool {
+	private int maxSize;
+	private long idleTimeout;
+
+	// Number of systems open, idle or borrowed.
+	private int size = 0;
+	private boolean closed = false;
+
+	private HashMap<String, LinkedList<Entry>> idle = new HashMap<String, LinkedList<Entry>>();
+	private LinkedHashSet<Entry> lru = new LinkedHashSet<Entry>();
+	private HashMap<ManagedSystem, Entry> borrowed = new HashMap<ManagedSystem, Entry>();
+
+	private Timer reaper = null;
+
+	/**
+	 * Pooled system and the credentials it was opened with.
+	 */
+	private static class Entry {
+		String key;
+		String password;
+		ManagedSystem system;
+		long lastUsed;
+
+		Entry(String key, String password, ManagedSystem system) {
+			this.key = key;
+			this.password = password;
+			this.system = system;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param maxSize maximum number of open systems
+	 * @param idleTimeout milliseconds a system may sit idle before it is closed
+	 */
+	public ManagedSystemPool(int maxSize, long idleTimeout) {
+		this.maxSize = maxSize;
+		this.idleTimeout = idleTimeout;
+
+		long period = Math.max(1000, idleTimeout / 2);
+		this.reaper = new Timer("ManagedSystemPool reaper", true);
+		this.reaper.schedule(new TimerTask() {
+			public void run() {
+				reap();
+			}
+		}, period, period);
+	}
+
+	/**
+	 * Get a system to work with, reusing an idle connection if there is one.
+	 * Blocks while the pool is full and every system is borrowed.
+	 *
+	 * @param address IP address or DNS name of the system to contact
+	 * @param domain Windows authentication domain
+	 * @param username User authorized to make WMI calls
+	 * @param password User's password
+	 * @throws UnknownHostException
+	 * @throws JIException
+	 * @throws InterruptedException
+	 */
+	public ManagedSystem borrow(String address, String domain, String username, String password)
+			throws UnknownHostException, JIException, InterruptedException {
+		String key = address + "\0" + domain + "\0" + username;
+
+		while (true) {
+			Entry entry = null;
+			ArrayList<Entry> evicted = new ArrayList<Entry>();
+
+			synchronized (this) {
+				if (this.closed)
+					throw new IllegalStateException("pool is closed");
+
+				entry = this.takeIdle(key);
+				if (entry != null && !entry.password.equals(password)) {
+					// Credentials changed, don't reuse the old connection
+					evicted.add(entry);
+					this.size--;
+					entry = null;
+				}
+
+				if (entry == null) {
+					// Evicted systems give up their slot now, they are
+					// closed outside the lock below
+					while (this.size >= this.maxSize && !this.lru.isEmpty()) {
+						evicted.add(this.evictOldest());
+						this.size--;
+					}
+
+					if (this.size >= this.maxSize && evicted.isEmpty()) {
+						this.wait();
+						continue;
+					}
+					// Reserve a slot for the new system
+					this.size++;
+				}
+			}
+
+			for (Entry stale : evicted)
+				this.closeSystem(stale);
+
+			if (entry != null) {
+				if (entry.system.isAlive()) {
+					synchronized (this) {
+						this.borrowed.put(entry.system, entry);
+					}
+					return entry.system;
+				}
+
+				// Dead connection, drop it and try again
+				this.destroy(entry);
+				continue;
+			}
+
+			ManagedSystem system = null;
+			try {
+				system = new ManagedSystem(address, domain, username, password);
+			} finally {
+				if (system == null)
+					this.discard();
+			}
+
+			synchronized (this) {
+				this.borrowed.put(system, new Entry(key, password, system));
+			}
+			return system;
+		}
+	}
+
+	/**
+	 * Return a borrowed system to the pool.
+	 * @param system system returned by borrow
+	 */
+	public void release(ManagedSystem system) {
+		Entry entry = null;
+		synchronized (this) {
+			entry = this.borrowed.remove(system);
+			if (entry == null)
+				return;
+
+			if (!this.closed) {
+				entry.lastUsed = System.currentTimeMillis();
+				LinkedList<Entry> entries = this.idle.get(entry.key);
+				if (entries == null) {
+					entries = new LinkedList<Entry>();
+					this.idle.put(entry.key, entries);
+				}
+				entries.addLast(entry);
+				this.lru.add(entry);
+				this.notifyAll();
+				return;
+			}
+		}
+		this.destroy(entry);
+	}
+
+	/**
+	 * Close a borrowed system instead of returning it, e.g. after an error
+	 * that left it in an unknown state.
+	 * @param system system returned by borrow
+	 */
+	public void invalidate(ManagedSystem system) {
+		Entry entry = null;
+		synchronized (this) {
+			entry = this.borrowed.remove(system);
+		}
+		if (entry != null)
+			this.destroy(entry);
+	}
+
+	/**
+	 * @return number of open systems, idle or borrowed
+	 */
+	public synchronized int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return number of idle systems
+	 */
+	public synchronized int getIdleCount() {
+		return this.lru.size();
+	}
+
+	/**
+	 * Close all idle systems and stop the reaper. Borrowed systems are
+	 * closed when they are released.
+	 */
+	public void close() {
+		ArrayList<Entry> entries = null;
+		synchronized (this) {
+			this.closed = true;
+			this.reaper.cancel();
+			entries = new ArrayList<Entry>(this.lru);
+			for (Entry entry : entries)
+				this.removeIdle(entry);
+			this.notifyAll();
+		}
+		this.destroy(entries);
+	}
+
+	/**
+	 * Close systems that have been idle for too long.
+	 */
+	private void reap() {
+		ArrayList<Entry> expired = new ArrayList<Entry>();
+		long cutoff = System.currentTimeMillis() - this.idleTimeout;
+		synchronized (this) {
+			// The LRU set is ordered by release time, oldest first
+			Iterator<Entry> it = this.lru.iterator();
+			while (it.hasNext()) {
+				Entry entry = it.next();
+				if (entry.lastUsed > cutoff)
+					break;
+				expired.add(entry);
+			}
+			for (Entry entry : expired)
+				this.removeIdle(entry);
+		}
+		this.destroy(expired);
+	}
+
+	private Entry takeIdle(String key) {
+		LinkedList<Entry> entries = this.idle.get(key);
+		if (entries == null)
+			return null;
+
+		// Most recently used first, it is the most likely to still be alive
+		Entry entry = entries.removeLast();
+		if (entries.isEmpty())
+			this.idle.remove(key);
+		this.lru.remove(entry);
+		return entry;
+	}
+
+	private Entry evictOldest() {
+		Entry entry = this.lru.iterator().next();
+		this.removeIdle(entry);
+		return entry;
+	}
+
+	private void removeIdle(Entry entry) {
+		this.lru.remove(entry);
+		LinkedList<Entry> entries = this.idle.get(entry.key);
+		if (entries != null) {
+			entries.remove(entry);
+			if (entries.isEmpty())
+				this.idle.remove(entry.key);
+		}
+	}
+
+	private synchronized void discard() {
+		this.size--;
+		this.notifyAll();
+	}
+
+	private void destroy(ArrayList<Entry> entries) {
+		for (Entry entry : entries)
+			this.destroy(entry);
+	}
+
+	/**
+	 * Close a system that has been removed from the pool.
+	 */
+	private void destroy(Entry entry) {
+		try {
+			this.closeSystem(entry);
+		} finally {
+			this.discard();
+		}
+	}
+
+	/**
+	 * Close a system whose slot has already been given up.
+	 */
+	private void closeSystem(Entry entry) {
+		try {
+			entry.system.close();
+		} catch (JIException e) {
+			JISystem.getLogger().info("error closing pooled system: " + e.getMessage());
+		}
+	}
+}
@@ -1,6 +1,11 @@
 package com.rpath.management.windows;
 
 public class NetworkQueryResults {
+	/**
+	 * Column names of the rows returned by getRecords.
+	 */
+	public static final String[] COLUMNS = {"InterfaceIndex", "IPAddress", "IPSubnet", "DNSHostName", "DNSDomain"};
+	
 	private int index;
 	private String hostname;
 	private String domain;
@@ -37,4 +42,17 @@ public class NetworkQueryResults {
 	public String[][] getAddresses() {
 		return this.addresses;
 	}
+	
+	/**
+	 * Get one row per address with the values in COLUMNS order.
+	 */
+	public Object[][] getRecords() {
+		Object[][] records = new Object[this.addresses.length][];
+		for (int i=0; i<this.addresses.length; i++) {
+			records[i] = new Object[] {new Long(this.index),
+				this.addresses[i][0], this.addresses[i][1],
+				this.hostname, this.domain, };
+		}
+		return records;
+	}
 }
@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2010 rPath, Inc.
+ */
+package com.rpath.management.windows;
+
+/**
+ * Class for holding how a process that was waited on exited, or that the
+ * wait timed out.
+ */
+public class ProcessExit {
+	/**
+	 * Column names of the row returned by getRecord.
+	 */
+	public static final String[] COLUMNS = {"ProcessId", "ExitStatus", "Elapsed"};
+	
+	private int pid;
+	private Long exitStatus;
+	private long elapsed;
+	private boolean exited;
+	
+	/**
+	 * Constructor
+	 * @param pid process ID
+	 * @param exitStatus exit status, null if it isn't known
+	 * @param elapsed milliseconds waited for the exit
+	 */
+	ProcessExit(int pid, Long exitStatus, long elapsed) {
+		this(pid, exitStatus, elapsed, true);
+	}
+	
+	/**
+	 * Constructor
+	 * @param pid process ID
+	 * @param exitStatus exit status, null if it isn't known
+	 * @param elapsed milliseconds waited
+	 * @param exited false if the process was still running when the wait
+	 *        timed out
+	 */
+	ProcessExit(int pid, Long exitStatus, long elapsed, boolean exited) {
+		this.pid = pid;
+		this.exitStatus = exitStatus;
+		this.elapsed = elapsed;
+		this.exited = exited;
+	}
+	
+	public int getPid() {
+		return this.pid;
+	}
+	
+	/**
+	 * @return false if the wait timed out with the process still running
+	 */
+	public boolean hasExited() {
+		return this.exited;
+	}
+	
+	/**
+	 * @return the exit status, null if the process had already exited
+	 *         when the wait started or hasn't exited
+	 */
+	public Long getExitStatus() {
+		return this.exitStatus;
+	}
+	
+	/**
+	 * @return milliseconds from the start of the wait to the exit
+	 */
+	public long getElapsed() {
+		return this.elapsed;
+	}
+	
+	/**
+	 * Get the result as a row with the values in COLUMNS order.
+	 */
+	public Object[] getRecord() {
+		return new Object[] {new Integer(this.pid), this.exitStatus, new Long(this.elapsed), };
+	}
+}
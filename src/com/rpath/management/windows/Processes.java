@@ -3,10 +3,11 @@
  */
 package com.rpath.management.windows;
 
+import java.util.ArrayList;
+
 import org.jinterop.dcom.common.JIException;
 import org.jinterop.dcom.core.JIString;
 import org.jinterop.dcom.core.JIVariant;
-import org.jinterop.dcom.impls.JIObjectFactory;
 import org.jinterop.dcom.impls.automation.IJIDispatch;
 
 /**
@@ -15,6 +16,9 @@ import org.jinterop.dcom.impls.automation.IJIDispatch;
  * Class for managing processes on a remote machine over WMI.
  */
 public class Processes {
+	// Longest image name stop traces report in full
+	private static final int MAX_TRACE_NAME = 14;
+	
 	private Session session = null;
 	private Query query = null;
 	
@@ -43,9 +47,103 @@ public class Processes {
 	 * @throws JIException 
 	 */
 	public int create(String[] cmd) throws JIException {
-		// Get a process handle
-		IJIDispatch handle = this.getHandle();
+		JIVariant[] results = this.invokeCreate(cmd);
+		int pid = results[1].getObjectAsVariant().getObjectAsInt();
+
+		return pid;
+	}
+	
+	/**
+	 * Run a command and wait for it to exit. The stop trace subscription is
+	 * set up before the process is created so that even an immediate exit
+	 * is seen.
+	 * @param cmd Command to execute
+	 * @param timeout milliseconds to wait for the process to exit
+	 * @return exit status and run time; if the process didn't exit in time
+	 *         only its process ID is set and hasExited is false
+	 * @throws JIException if the process couldn't be created
+	 */
+	public ProcessExit createAndWait(String[] cmd, long timeout) throws JIException {
+		// Only stop traces for the same image name are of interest. The
+		// trace carries the kernel's copy of the name, which is cut short,
+		// so longer names are matched by process ID alone.
+		WqlQuery query = new WqlQuery("Win32_ProcessStopTrace", "ProcessID", "ExitStatus");
+		String image = imageName(cmd);
+		if (image != null && image.length() <= MAX_TRACE_NAME)
+			query.where("ProcessName", image);
+		
+		EventWatcher watcher = this.query.watch(query.toString());
+		try {
+			long start = System.currentTimeMillis();
+			JIVariant[] results = this.invokeCreate(cmd);
+			int rc = results[0].getObjectAsInt();
+			if (rc != 0)
+				throw new JIException(rc, this.status_codes.get(rc));
+			int pid = results[1].getObjectAsVariant().getObjectAsInt();
+			
+			return this.waitForStop(watcher, pid, start, timeout);
+		} finally {
+			watcher.close();
+		}
+	}
+	
+	/**
+	 * Wait for a running process to exit.
+	 * @param pid Process ID to wait for
+	 * @param timeout milliseconds to wait for the process to exit
+	 * @return exit status and wait time, hasExited is false if the process
+	 *         didn't exit in time; the exit status is null if the process had
+	 *         already exited
+	 * @throws JIException
+	 */
+	public ProcessExit awaitExit(int pid, long timeout) throws JIException {
+		WqlQuery query = new WqlQuery("Win32_ProcessStopTrace", "ProcessID", "ExitStatus");
+		query.where("ProcessID", pid);
 		
+		EventWatcher watcher = this.query.watch(query.toString());
+		try {
+			long start = System.currentTimeMillis();
+			
+			// The subscription is in place, so an exit after this check is seen
+			WqlQuery running = new WqlQuery("Win32_Process", "ProcessId");
+			running.where("ProcessId", pid);
+			if (this.query.select(running).isEmpty())
+				return new ProcessExit(pid, null, 0);
+			
+			return this.waitForStop(watcher, pid, start, timeout);
+		} finally {
+			watcher.close();
+		}
+	}
+	
+	/**
+	 * Read stop traces until the one for a process arrives.
+	 */
+	private ProcessExit waitForStop(EventWatcher watcher, int pid, long start, long timeout) throws JIException {
+		RecordDecoder decoder = new RecordDecoder("ProcessID", "ExitStatus");
+		long deadline = start + timeout;
+		while (true) {
+			IJIDispatch event = watcher.nextEvent(deadline - System.currentTimeMillis());
+			if (event == null)
+				return new ProcessExit(pid, null, System.currentTimeMillis() - start, false);
+			
+			WbemRecord trace = decoder.decode(event);
+			if (trace.getLong(0, -1) != pid)
+				continue;
+			
+			// ExitStatus is a uint32
+			Long status = trace.isNull(1) ? null : new Long(trace.getLong(1, 0) & 0xffffffffL);
+			return new ProcessExit(pid, status, System.currentTimeMillis() - start);
+		}
+	}
+	
+	/**
+	 * Call Win32_Process.Create.
+	 * @param cmd Command to execute
+	 * @return return value and, in the second element, the process ID
+	 * @throws JIException
+	 */
+	private JIVariant[] invokeCreate(String[] cmd) throws JIException {
 		// Create the process
 		// The process Id will be in the second element of the results array
 		JIVariant processId = JIVariant.EMPTY_BYREF();
@@ -57,10 +155,31 @@ public class Processes {
 				processId,
 		};
 		
-		JIVariant[] results = handle.callMethodA("Create", params);
-		int pid = results[1].getObjectAsVariant().getObjectAsInt();
+		// The Win32_Process class object is cached by the session
+		return this.session.invokeStatic("Win32_Process", "Create", params);
+	}
 
-		return pid;
+	/**
+	 * Guess the image name a command will show up as in stop traces.
+	 * @param cmd Command to execute
+	 * @return file name of the executable, null if it isn't clear
+	 */
+	static String imageName(String[] cmd) {
+		if (cmd.length == 0)
+			return null;
+		
+		String exe = cmd[0].trim();
+		if (exe.startsWith("\"") && exe.endsWith("\"") && exe.length() > 1)
+			exe = exe.substring(1, exe.length() - 1);
+		else if (exe.indexOf(' ') >= 0)
+			// Joined command line, the path may contain spaces
+			return null;
+		
+		int slash = Math.max(exe.lastIndexOf('\\'), exe.lastIndexOf('/'));
+		exe = exe.substring(slash + 1);
+		if (!exe.toLowerCase().endsWith(".exe"))
+			return null;
+		return exe;
 	}
 
 	/**
@@ -80,45 +199,23 @@ public class Processes {
 	 */
 	public String[] status(int pid) throws JIException {
 		// Query results
-		JIVariant[] queryResults = this.queryPid(pid);
+		ArrayList<WbemRecord> queryResults = this.queryPid(pid);
 		
-		Integer[] results = new Integer[queryResults.length];
-		for (int i=0; i<queryResults.length; i++)
-			results[i] = queryResults[i].getObjectAsInt();
+		Integer[] results = new Integer[queryResults.size()];
+		for (int i=0; i<results.length; i++)
+			results[i] = queryResults.get(i).getInt(0, 0);
 			
 		return this.status_codes.reportStatus(results);
 	}
 
-	/**
-	 * Create a new Win32 Process handle
-	 * @throws JIException 
-	 */
-	private IJIDispatch getHandle() throws JIException {
-		IJIDispatch comDispatch = this.session.getDispatch();
-
-		// Build query params
-		Object[] params = new Object[] {
-				new JIString("Win32_Process"),
-				new Integer(0),
-				JIVariant.OPTIONAL_PARAM()
-		};
-		
-		// Get the Win32_Process handle
-		JIVariant[] processHandle = comDispatch.callMethodA("Get", params);
-		
-		// Get the Dispatcher
-		IJIDispatch dispatch = (IJIDispatch)JIObjectFactory.narrowObject(processHandle[0].getObjectAsComObject());
-
-		return dispatch;
-	}
-	
 	/**
 	 * Query process by process id
 	 * @param pid Process ID to search for
 	 * @throws JIException 
 	 */
-	private JIVariant[] queryPid(int pid) throws JIException {
-		String queryStr = "Select * From Win32_ProcessStopTrace where ProcessID=" + pid;
-		return (JIVariant[])this.query.query(queryStr).toArray();
+	private ArrayList<WbemRecord> queryPid(int pid) throws JIException {
+		WqlQuery query = new WqlQuery("Win32_ProcessStopTrace", "ExitStatus");
+		query.where("ProcessID", pid);
+		return this.query.select(query);
 	}
 }
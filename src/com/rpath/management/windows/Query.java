@@ -7,11 +7,9 @@ import static org.jinterop.dcom.impls.JIObjectFactory.narrowObject;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 
 import org.jinterop.dcom.common.JIException;
 import org.jinterop.dcom.core.IJIComObject;
-import org.jinterop.dcom.core.JIArray;
 import org.jinterop.dcom.core.JIString;
 import org.jinterop.dcom.core.JIVariant;
 import org.jinterop.dcom.impls.automation.IJIDispatch;
@@ -28,6 +26,8 @@ public class Query {
 	private final int RETURN_IMMEDIATE = 0x10;
 	private final int FORWARD_ONLY = 0x20;
 
+	private int batchSize = QueryEnumerator.ADAPTIVE;
+
 	/**
 	 * Constructor
 	 * @param session WMI Session instance
@@ -36,7 +36,172 @@ public class Query {
 		this.session = session;
 	}
 	
+	/**
+	 * Set the number of results fetched per round trip for queries that
+	 * don't specify one.
+	 * @param batchSize number of results, or QueryEnumerator.ADAPTIVE
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+	
+	/**
+	 * Run a WQL query and collect all of the results.
+	 * @param queryString WQL query
+	 * @throws JIException
+	 */
 	public ArrayList<JIVariant> query(String queryString) throws JIException {
+		return this.query(queryString, this.batchSize);
+	}
+	
+	/**
+	 * Run a WQL query and collect all of the results.
+	 * @param queryString WQL query
+	 * @param batchSize number of results to fetch per round trip, or QueryEnumerator.ADAPTIVE
+	 * @throws JIException
+	 */
+	public ArrayList<JIVariant> query(String queryString, int batchSize) throws JIException {
+		final ArrayList<JIVariant> ret = new ArrayList<JIVariant>();
+		this.query(queryString, batchSize, new QueryResultHandler() {
+			public void handleResult(JIVariant result) {
+				ret.add(result);
+			}
+		});
+		return ret;
+	}
+	
+	/**
+	 * Run a WQL query and pass each result to a handler as it arrives.
+	 * @param queryString WQL query
+	 * @param handler handler to receive results
+	 * @throws JIException
+	 */
+	public void query(String queryString, QueryResultHandler handler) throws JIException {
+		this.query(queryString, this.batchSize, handler);
+	}
+	
+	/**
+	 * Run a WQL query and pass each result to a handler as it arrives. Only
+	 * one batch of results is held at a time and the enumerator is released
+	 * once it has been drained.
+	 * @param queryString WQL query
+	 * @param batchSize number of results to fetch per round trip, or QueryEnumerator.ADAPTIVE
+	 * @param handler handler to receive results
+	 * @throws JIException
+	 */
+	public void query(String queryString, int batchSize, QueryResultHandler handler) throws JIException {
+		JIVariant[] resultSet = null;
+		try {
+			resultSet = this.execQuery(queryString);
+		} catch (JIException e) {
+			// Retry once on a fresh connection if the cached one went away
+			if (!this.session.shouldRetry(e))
+				throw e;
+			resultSet = this.execQuery(queryString);
+		}
+
+		IJIDispatch wbemObjectSet = (IJIDispatch)narrowObject(resultSet[0].getObjectAsComObject());
+
+		JIVariant newEnumVariant = wbemObjectSet.get("_NewEnum");
+		IJIComObject enumComObject = newEnumVariant.getObjectAsComObject().queryInterface(IJIEnumVariant.IID);
+		QueryEnumerator enumerator = new QueryEnumerator(enumComObject, batchSize);
+		
+		try {
+			JIVariant[] batch = null;
+			while ((batch = enumerator.nextBatch()) != null) {
+				for (int i=0; i<batch.length; i++) {
+					handler.handleResult(batch[i]);
+					
+					// Drop our reference so the object can be released
+					batch[i] = null;
+				}
+			}
+		} finally {
+			this.release(enumComObject);
+		}
+	}
+	
+	/**
+	 * Run a projected query and collect the decoded results.
+	 * @param query query to run
+	 * @throws JIException
+	 */
+	public ArrayList<WbemRecord> select(WqlQuery query) throws JIException {
+		final ArrayList<WbemRecord> ret = new ArrayList<WbemRecord>();
+		this.select(query, new RecordHandler() {
+			public void handleRecord(WbemRecord record) {
+				ret.add(record);
+			}
+		});
+		return ret;
+	}
+	
+	/**
+	 * Run a projected query and pass each decoded result to a handler.
+	 * @param query query to run
+	 * @param handler handler to receive results
+	 * @throws JIException
+	 */
+	public void select(WqlQuery query, final RecordHandler handler) throws JIException {
+		final RecordDecoder decoder = query.getDecoder();
+		this.query(query.toString(), new QueryResultHandler() {
+			public void handleResult(JIVariant result) throws JIException {
+				handler.handleRecord(decoder.decode(result));
+			}
+		});
+	}
+	
+	/**
+	 * Release a COM object, ignoring failures since the object is no
+	 * longer needed either way.
+	 * @param obj object to release
+	 */
+	private void release(IJIComObject obj) {
+		try {
+			obj.release();
+		} catch (JIException e) {
+			// The reference is dropped on the floor and cleaned up with the session.
+		}
+	}
+	
+	/**
+	 * Start a notification query. Events are queued by WMI from this point
+	 * on until the watcher is closed.
+	 * @param queryString WQL event query
+	 * @throws JIException
+	 */
+	public EventWatcher watch(String queryString) throws JIException {
+		JIVariant[] results = null;
+		try {
+			results = this.execNotificationQuery(queryString);
+		} catch (JIException e) {
+			// Retry once on a fresh connection if the cached one went away
+			if (!this.session.shouldRetry(e))
+				throw e;
+			results = this.execNotificationQuery(queryString);
+		}
+		return new EventWatcher((IJIDispatch)narrowObject(results[0].getObjectAsComObject()));
+	}
+	
+	private JIVariant[] execNotificationQuery(String queryString) throws JIException {
+		IJIDispatch dispatch = this.session.getDispatch();
+		
+		// Event queries have to be semisynchronous
+		Object[] params = new Object[] {
+			new JIString(queryString),
+			JIVariant.OPTIONAL_PARAM(),
+			new JIVariant(new Integer(this.RETURN_IMMEDIATE + this.FORWARD_ONLY)),
+		};
+		
+		return dispatch.callMethodA("ExecNotificationQuery", params);
+	}
+	
+	/**
+	 * Run ExecQuery against the session's SWbemServices connection.
+	 * @param queryString WQL query
+	 * @throws JIException
+	 */
+	private JIVariant[] execQuery(String queryString) throws JIException {
 		// Get a dispatcher for communicating with the services interface
 		IJIDispatch dispatch = this.session.getDispatch();
 		
@@ -47,74 +212,51 @@ public class Query {
 			new JIVariant(new Integer(this.RETURN_IMMEDIATE + this.FORWARD_ONLY)),
 		};
 		
-		JIVariant[] resultSet = dispatch.callMethodA("ExecQuery", params);
-
-		IJIDispatch wbemObjectSet = (IJIDispatch)narrowObject(resultSet[0].getObjectAsComObject());
-
-		JIVariant newEnumVariant = wbemObjectSet.get("_NewEnum");
-		IJIComObject enumComObject = newEnumVariant.getObjectAsComObject();
-		IJIEnumVariant enumVariant = (IJIEnumVariant)narrowObject(enumComObject.queryInterface(IJIEnumVariant.IID));
-		
-		ArrayList<JIVariant> ret = new ArrayList<JIVariant>();
-		try {
-			while(true) {
-				Object[] elements = enumVariant.next(1);
-				JIArray jiArray = (JIArray)elements[0];
-				JIVariant[] array = (JIVariant[])jiArray.getArrayInstance();
-				ret.addAll(Arrays.asList(array));
-			}
-		} catch (JIException e) {
-			// ignore this exception, iterator is done.
-		}
-		return ret;		
+		return dispatch.callMethodA("ExecQuery", params);
 	}
 	
 	public NetworkQueryResults[] queryNetwork() throws JIException {
-		ArrayList<JIVariant> queryResults = this.query("SELECT * FROM Win32_NetworkAdapterConfiguration");
+		WqlQuery query = new WqlQuery("Win32_NetworkAdapterConfiguration",
+				"InterfaceIndex", "DNSHostName", "DNSDomain", "IPAddress", "IPSubnet");
+		query.where("IPEnabled", true);
 		
-		NetworkQueryResults[] results = new NetworkQueryResults[queryResults.size()];
-		for (int i=0; i<queryResults.size(); i++) {
-			IJIComObject obj = queryResults.get(i).getObjectAsComObject();
-			IJIDispatch dispatch = (IJIDispatch)narrowObject(obj);
+		final ArrayList<NetworkQueryResults> results = new ArrayList<NetworkQueryResults>();
+		this.select(query, new RecordHandler() {
+			public void handleRecord(WbemRecord row) {
+				int index = row.getInt(0, 0);
+				String hostName = row.isNull(1) ? " " : row.getString(1);
+				String domain = row.isNull(2) ? " " : row.getString(2);
 
-			Boolean IPEnabled = dispatch.get("IPEnabled").getObjectAsBoolean();
-			if (IPEnabled==false) {
-				continue;
-			}
-
-			int index = dispatch.get("InterfaceIndex").getObjectAsInt();
-			String hostName = " ";
-			try {
-				hostName = dispatch.get("DNSHostName").getObjectAsString2();
-			} catch (Exception e) {}
+				String[] addr = row.getStringArray(3);
+				String[] subnet = row.getStringArray(4);
 
-			String domain = " ";
-			try {
-				domain = dispatch.get("DNSDomain").getObjectAsString2();
-			} catch (Exception e) {}
-			
-			JIArray jiAddr = dispatch.get("IPAddress").getObjectAsArray();
-			JIVariant[] addr = (JIVariant[])jiAddr.getArrayInstance();
-
-			JIArray jiSubnet = dispatch.get("IPSubnet").getObjectAsArray();
-			JIVariant[] subnet = (JIVariant[])jiSubnet.getArrayInstance();
-
-			results[i] = new NetworkQueryResults(index, hostName, domain, addr.length);		
-			for (int j=0; j<addr.length; j++) {
-				results[i].addAddress(addr[j].getObjectAsString2(), subnet[j].getObjectAsString2());
+				NetworkQueryResults network = new NetworkQueryResults(index, hostName, domain, addr.length);
+				for (int j=0; j<addr.length; j++) {
+					network.addAddress(addr[j], j < subnet.length ? subnet[j] : "");
+				}
+				results.add(network);
 			}
-		}
-		return results;
+		});
+		return results.toArray(new NetworkQueryResults[results.size()]);
 	}
 	
 	public void displayNetworkQueryResults(NetworkQueryResults[] results, PrintStream out) {
+		Utils.displayStringArray(this.formatNetworkQueryResults(results), out);
+	}
+	
+	/**
+	 * Format network query results, one line per address.
+	 * @param results output of queryNetwork
+	 */
+	public String[] formatNetworkQueryResults(NetworkQueryResults[] results) {
+		ArrayList<String> lines = new ArrayList<String>();
 		for (int i=0; i<results.length; i++) {
 			NetworkQueryResults result = results[i];
 			if (result == null)
 				continue;
 			String[][] addresses = result.getAddresses();
 			for (int j=0; j<addresses.length; j++) {
-				out.println(
+				lines.add(
 						result.getIndex() + ", "
 						+ addresses[j][0] + ", " 
 						+ addresses[j][1] + ", " 
@@ -123,16 +265,12 @@ public class Query {
 						);
 			}
 		}
+		return lines.toArray(new String[lines.size()]);
 	}
 	
 	public String queryUUID() throws JIException {
-		ArrayList<JIVariant> queryResults = this.query("SELECT * FROM Win32_ComputerSystemProduct");
-		
-		IJIComObject obj = queryResults.get(0).getObjectAsComObject();
-		IJIDispatch dispatch = (IJIDispatch)narrowObject(obj);
-			
-		String uuid = dispatch.get("UUID").getObjectAsString2();
-		return uuid;
+		ArrayList<WbemRecord> queryResults = this.select(new WqlQuery("Win32_ComputerSystemProduct", "UUID"));
+		return queryResults.get(0).getString(0);
 	}
 	
 }
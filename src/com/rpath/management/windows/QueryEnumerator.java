@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2010 rPath, Inc.
+ */
+package com.rpath.management.windows;
+
+import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.IJIComObject;
+import org.jinterop.dcom.core.JIArray;
+import org.jinterop.dcom.core.JICallBuilder;
+import org.jinterop.dcom.core.JIFlags;
+import org.jinterop.dcom.core.JIVariant;
+
+/**
+ * Class for walking an SWbemObjectSet enumerator several elements at a time.
+ *
+ * Each call to nextBatch is one IEnumVARIANT::Next round trip. The batch size
+ * is either fixed or, in adaptive mode, grown while round trips stay fast and
+ * shrunk when rows are large enough that a batch takes too long.
+ */
+public class QueryEnumerator {
+	/**
+	 * Batch size value that selects adaptive sizing.
+	 */
+	public static final int ADAPTIVE = 0;
+
+	// IEnumVARIANT::Next returns S_FALSE when fewer elements than requested
+	// were available, which means the enumeration is finished.
+	private static final int S_FALSE = 1;
+
+	private static final int INITIAL_BATCH = 16;
+	private static final int MAX_BATCH = 256;
+
+	// Keep each round trip well inside the session socket timeout.
+	private static final long TARGET_MILLIS = 1000;
+
+	private IJIComObject enumObject = null;
+	private boolean adaptive;
+	private int batchSize;
+	private boolean done = false;
+	private int roundTrips = 0;
+
+	/**
+	 * Constructor
+	 * @param enumObject IEnumVARIANT interface of the result set
+	 * @param batchSize number of elements to fetch per round trip, or ADAPTIVE
+	 */
+	public QueryEnumerator(IJIComObject enumObject, int batchSize) {
+		this.enumObject = enumObject;
+		this.adaptive = batchSize <= ADAPTIVE;
+		this.batchSize = this.adaptive ? INITIAL_BATCH : batchSize;
+	}
+
+	/**
+	 * Fetch the next batch of elements.
+	 * @return array of elements, or null once the enumeration is finished
+	 * @throws JIException
+	 */
+	public JIVariant[] nextBatch() throws JIException {
+		if (this.done)
+			return null;
+
+		JICallBuilder call = new JICallBuilder(true);
+		call.setOpnum(0);
+		call.addInParamAsInt(this.batchSize, JIFlags.FLAG_NULL);
+		call.addOutParamAsObject(new JIArray(JIVariant.class, null, 1, true, true), JIFlags.FLAG_NULL);
+		call.addOutParamAsType(Integer.class, JIFlags.FLAG_NULL);
+
+		long start = System.currentTimeMillis();
+		Object[] results = null;
+		try {
+			results = this.enumObject.call(call);
+		} catch (JIException e) {
+			if (e.getErrorCode() != S_FALSE)
+				throw e;
+
+			// The last, partial batch is delivered along with S_FALSE.
+			results = call.getResultsInCaseOfException();
+			this.done = true;
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		this.roundTrips++;
+
+		JIVariant[] rows = this.getRows(results);
+		if (rows.length == 0) {
+			this.done = true;
+			return null;
+		}
+
+		if (this.adaptive)
+			this.adjust(rows.length, elapsed);
+
+		return rows;
+	}
+
+	/**
+	 * Check if the enumerator has run out of elements.
+	 */
+	public boolean isDone() {
+		return this.done;
+	}
+
+	/**
+	 * @return the number of elements that will be requested next
+	 */
+	public int getBatchSize() {
+		return this.batchSize;
+	}
+
+	/**
+	 * @return number of Next calls made so far
+	 */
+	public int getRoundTrips() {
+		return this.roundTrips;
+	}
+
+	/**
+	 * Pull the element array out of the Next results.
+	 * @param results out parameters of the call: element array and count
+	 */
+	private JIVariant[] getRows(Object[] results) {
+		if (results == null || results[0] == null)
+			return new JIVariant[0];
+
+		JIVariant[] array = (JIVariant[])((JIArray)results[0]).getArrayInstance();
+		int fetched = array.length;
+		if (results.length > 1 && results[1] != null)
+			fetched = Math.min(fetched, ((Integer)results[1]).intValue());
+
+		if (fetched == array.length)
+			return array;
+
+		JIVariant[] rows = new JIVariant[fetched];
+		System.arraycopy(array, 0, rows, 0, fetched);
+		return rows;
+	}
+
+	/**
+	 * Pick the next batch size from the time the last batch took. The time
+	 * per row covers both latency and row size; grow by at most a factor of
+	 * two per batch so one fast round trip doesn't overshoot.
+	 * @param rows number of rows in the last batch
+	 * @param elapsed milliseconds the last batch took
+	 */
+	private void adjust(int rows, long elapsed) {
+		if (rows < this.batchSize)
+			return;
+
+		int next;
+		if (elapsed <= 0) {
+			next = this.batchSize * 2;
+		} else {
+			double perRow = (double)elapsed / rows;
+			next = (int)Math.min(TARGET_MILLIS / perRow, this.batchSize * 2.0);
+		}
+
+		this.batchSize = Math.max(1, Math.min(next, MAX_BATCH));
+	}
+}
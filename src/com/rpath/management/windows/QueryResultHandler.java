@@ -0,0 +1,21 @@
+/**
+ * Copyright (c) 2010 rPath, Inc.
+ */
+package com.rpath.management.windows;
+
+import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.JIVariant;
+
+/**
+ * Interface for receiving query results one at a time as they are read from
+ * the remote enumerator.
+ */
+public interface QueryResultHandler {
+	/**
+	 * Handle a single result. The result is only referenced by the query for
+	 * the duration of this call.
+	 * @param result SWbemObject variant
+	 * @throws JIException
+	 */
+	public void handleResult(JIVariant result) throws JIException;
+}
@@ -0,0 +1,283 @@
+/**
+ * Copyright (c) 2010 rPath, Inc.
+ */
+package com.rpath.management.windows;
+
+import static org.jinterop.dcom.impls.JIObjectFactory.narrowObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.JIVariant;
+import org.jinterop.dcom.impls.automation.IJIDispatch;
+
+/**
+ * Class for reading a set of properties from WMI objects.
+ *
+ * Rather than one property get per column, the whole object is fetched with a
+ * single SWbemObject.GetObjectText_ call and the MOF text is parsed locally.
+ */
+public class RecordDecoder {
+	private String[] columns = null;
+	private HashMap<String, Integer> index = null;
+
+	/**
+	 * Constructor
+	 * @param columns names of the properties to decode
+	 */
+	public RecordDecoder(String... columns) {
+		this.columns = columns;
+		this.index = new HashMap<String, Integer>();
+		for (int i=0; i<columns.length; i++)
+			this.index.put(columns[i].toLowerCase(), i);
+	}
+
+	/**
+	 * @return names of the decoded properties
+	 */
+	public String[] getColumns() {
+		return this.columns;
+	}
+
+	/**
+	 * Decode a query result.
+	 * @param result SWbemObject variant
+	 * @throws JIException
+	 */
+	public WbemRecord decode(JIVariant result) throws JIException {
+		return this.decode((IJIDispatch)narrowObject(result.getObjectAsComObject()));
+	}
+
+	/**
+	 * Decode a WMI object with one round trip.
+	 * @param object SWbemObject dispatch
+	 * @throws JIException
+	 */
+	public WbemRecord decode(IJIDispatch object) throws JIException {
+		JIVariant[] text = object.callMethodA("GetObjectText_", new Object[] {new Integer(0), });
+		return this.parse(text[0].getObjectAsString2());
+	}
+
+	/**
+	 * Parse the MOF text of an instance.
+	 * @param mof output of GetObjectText_
+	 */
+	public WbemRecord parse(String mof) {
+		WbemRecord record = new WbemRecord(this.columns);
+		if (mof == null)
+			return record;
+
+		Parser parser = new Parser(mof);
+		parser.skipTo('{');
+		while (parser.more()) {
+			parser.skipSpace();
+			char c = parser.peek();
+			if (c == '}') {
+				break;
+			} else if (c == '[') {
+				// Qualifiers, not decoded
+				parser.skipTo(']');
+				continue;
+			}
+
+			String name = parser.readName();
+			parser.skipSpace();
+			if (!parser.more() || parser.peek() != '=') {
+				// Not an assignment, move on to the next statement
+				parser.skipTo(';');
+				continue;
+			}
+			parser.next();
+
+			Integer column = this.index.get(name.toLowerCase());
+			Object value = parser.readValue();
+			if (column != null)
+				record.set(column.intValue(), value);
+
+			parser.skipTo(';');
+		}
+		return record;
+	}
+
+	/**
+	 * Minimal parser for the subset of MOF that GetObjectText_ produces for
+	 * instance property values.
+	 */
+	private static class Parser {
+		private String text;
+		private int pos;
+
+		Parser(String text) {
+			this.text = text;
+			this.pos = 0;
+		}
+
+		boolean more() {
+			return this.pos < this.text.length();
+		}
+
+		char peek() {
+			return this.text.charAt(this.pos);
+		}
+
+		char next() {
+			return this.text.charAt(this.pos++);
+		}
+
+		void skipSpace() {
+			while (this.more() && Character.isWhitespace(this.peek()))
+				this.pos++;
+		}
+
+		/**
+		 * Move past the next occurrence of a character outside of string
+		 * literals and nested braces.
+		 */
+		void skipTo(char end) {
+			int depth = 0;
+			while (this.more()) {
+				char c = this.next();
+				if (c == '"') {
+					this.readString();
+				} else if (c == '{' && end != '{') {
+					depth++;
+				} else if (c == '}' && depth > 0) {
+					depth--;
+				} else if (c == end && depth == 0) {
+					return;
+				}
+			}
+		}
+
+		String readName() {
+			int start = this.pos;
+			while (this.more()) {
+				char c = this.peek();
+				if (Character.isWhitespace(c) || c == '=' || c == ';')
+					break;
+				this.pos++;
+			}
+			return this.text.substring(start, this.pos);
+		}
+
+		Object readValue() {
+			this.skipSpace();
+			if (!this.more())
+				return null;
+
+			char c = this.peek();
+			if (c == '"') {
+				// Adjacent literals are concatenated
+				StringBuilder buf = new StringBuilder();
+				while (this.more() && this.peek() == '"') {
+					this.next();
+					buf.append(this.readString());
+					this.skipSpace();
+				}
+				return buf.toString();
+			} else if (c == '{') {
+				this.next();
+				ArrayList<Object> values = new ArrayList<Object>();
+				while (this.more()) {
+					this.skipSpace();
+					if (this.peek() == '}') {
+						this.next();
+						break;
+					} else if (this.peek() == ',') {
+						this.next();
+						continue;
+					}
+					values.add(this.readValue());
+				}
+				return values.toArray();
+			} else if (c == '\'') {
+				this.next();
+				char ch = this.next();
+				if (ch == '\\')
+					ch = this.next();
+				this.skipTo('\'');
+				return String.valueOf(ch);
+			}
+
+			// Bare word: number, boolean, NULL or an embedded instance
+			int start = this.pos;
+			while (this.more()) {
+				char ch = this.peek();
+				if (ch == ';' || ch == ',' || ch == '}' || ch == '{')
+					break;
+				this.pos++;
+			}
+			String word = this.text.substring(start, this.pos).trim();
+
+			if (this.more() && this.peek() == '{') {
+				// Embedded object, keep its MOF text
+				this.next();
+				this.skipTo('}');
+				return this.text.substring(start, this.pos).trim();
+			}
+
+			return this.parseWord(word);
+		}
+
+		Object parseWord(String word) {
+			if (word.equalsIgnoreCase("NULL"))
+				return null;
+			if (word.equalsIgnoreCase("TRUE"))
+				return Boolean.TRUE;
+			if (word.equalsIgnoreCase("FALSE"))
+				return Boolean.FALSE;
+
+			try {
+				if (word.startsWith("0x") || word.startsWith("0X"))
+					return Long.valueOf(Long.parseLong(word.substring(2), 16));
+				return Long.valueOf(word);
+			} catch (NumberFormatException e) {
+			}
+
+			try {
+				return Double.valueOf(word);
+			} catch (NumberFormatException e) {
+			}
+
+			return word;
+		}
+
+		/**
+		 * Read a string literal. The opening quote has already been consumed.
+		 */
+		String readString() {
+			StringBuilder buf = new StringBuilder();
+			while (this.more()) {
+				char c = this.next();
+				if (c == '"')
+					break;
+				if (c != '\\' || !this.more()) {
+					buf.append(c);
+					continue;
+				}
+
+				char esc = this.next();
+				switch (esc) {
+					case 'n': buf.append('\n'); break;
+					case 't': buf.append('\t'); break;
+					case 'r': buf.append('\r'); break;
+					case 'b': buf.append('\b'); break;
+					case 'f': buf.append('\f'); break;
+					case 'x':
+					case 'X':
+						int start = this.pos;
+						while (this.more() && this.pos - start < 4
+								&& Character.digit(this.peek(), 16) >= 0)
+							this.pos++;
+						if (this.pos > start)
+							buf.append((char)Integer.parseInt(this.text.substring(start, this.pos), 16));
+						break;
+					default:
+						buf.append(esc);
+				}
+			}
+			return buf.toString();
+		}
+	}
+}
@@ -0,0 +1,18 @@
+/**
+ * Copyright (c) 2010 rPath, Inc.
+ */
+package com.rpath.management.windows;
+
+import org.jinterop.dcom.common.JIException;
+
+/**
+ * Interface for receiving decoded query results one at a time.
+ */
+public interface RecordHandler {
+	/**
+	 * Handle a single decoded result.
+	 * @param record properties of the result
+	 * @throws JIException
+	 */
+	public void handleRecord(WbemRecord record) throws JIException;
+}
@@ -4,11 +4,23 @@
 
 package com.rpath.management.windows;
 
+import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 import org.jinterop.dcom.common.IJIAuthInfo;
 import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.common.JISystem;
 import org.jinterop.winreg.IJIWinReg;
 import org.jinterop.winreg.JIPolicyHandle;
 
@@ -16,16 +28,72 @@ import org.jinterop.winreg.JIPolicyHandle;
  * @author Elliot Peele <elliot@rpath.com>
  *
  * A class for interacting with the Windows registry via WMI
+ *
+ * One winreg connection is kept open per system and reused for every call,
+ * along with the handles of recently used keys. A connection that fails
+ * with a transport error is dropped and the call retried once on a new one.
+ * A cached key handle that has gone stale, e.g. because the key was deleted
+ * and recreated, is closed and the call retried once with a fresh handle.
+ * readSubkeys opens up to MAX_HANDLES connections and splits large reads
+ * across them; the extra connections are kept for later reads.
+ *
+ * The types of values read or written are remembered so that setKey doesn't
+ * have to read a value back before overwriting it. Values themselves can be
+ * cached as well, see getCache.
  */
 public class Registry {
+	private static final int ERROR_FILE_NOT_FOUND = 2;
+	private static final int ERROR_INVALID_HANDLE = 6;
+	private static final int ERROR_INVALID_DATA = 13;
+	private static final int ERROR_MORE_DATA = 234;
+	private static final int ERROR_NO_MORE_ITEMS = 259;
+	private static final int ERROR_KEY_DELETED = 1018;
+	private static final String[] TYPE_NAMES = {"REG_NONE", "REG_SZ", "REG_EXPAND_SZ",
+		"REG_BINARY", "REG_DWORD", "REG_DWORD_BIG_ENDIAN", "REG_LINK", "REG_MULTI_SZ",
+		"REG_RESOURCE_LIST", "REG_FULL_RESOURCE_DESCRIPTOR", "REG_RESOURCE_REQUIREMENTS_LIST",
+		"REG_QWORD", };
+
+	// Value buffer sizes. Reads start with the size last needed under the
+	// same key, or the initial size, and fall back to the maximum once.
+	private static final int INITIAL_VALUE_SIZE = 512;
+	private static final int MAX_VALUE_SIZE = 2*1024*1024;
+	private static final int MAX_SIZE_HINTS = 4096;
+	private static final int MAX_VALUE_TYPES = 1024;
+	private static final int MAX_CACHED_VALUES = 1024;
+	
+	// Connections readSubkeys spreads its reads over, the first one is
+	// shared with every other call
+	private static final int MAX_HANDLES = 4;
+	// Fewest subkeys worth reading over another connection
+	private static final int SUBKEYS_PER_HANDLE = 16;
+	
+	private static LinkedHashMap<String, Integer> sizeHints = new LinkedHashMap<String, Integer>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return this.size() > MAX_SIZE_HINTS;
+		}
+	};
 
 	private String address = null;
 	private IJIAuthInfo authInfo = null;
 	
+	private RegistryHandle[] handles = null;
+	private int reconnects = 0;
+	
+	// Known value types, keyed by lowercased "keyPath\\name"
+	private LinkedHashMap<String, Integer> valueTypes = null;
+	private int typeProbes = 0;
+	
+	private RegistryCache cache = null;
+	
 	@SuppressWarnings("rawtypes")
 	public Hashtable types = null;
 	public String REG_SZ = "REG_SZ";
 	public String REG_MULTI_SZ = "REG_MULTI_SZ";
+	public String REG_EXPAND_SZ = "REG_EXPAND_SZ";
+	public String REG_BINARY = "REG_BINARY";
+	public String REG_DWORD = "REG_DWORD";
 	
 	/**
 	 * Constructor for registry interactions.
@@ -37,9 +105,22 @@ public class Registry {
 	public Registry(String address, IJIAuthInfo authInfo) {
 		this.address = address;
 		this.authInfo = authInfo;
+		this.handles = new RegistryHandle[MAX_HANDLES];
 		this.types = new Hashtable();
 		this.types.put(this.REG_SZ, (Integer)IJIWinReg.REG_SZ);
 		this.types.put(this.REG_MULTI_SZ, (Integer)IJIWinReg.REG_MULTI_SZ);
+		this.types.put(this.REG_EXPAND_SZ, (Integer)IJIWinReg.REG_EXPAND_SZ);
+		this.types.put(this.REG_BINARY, (Integer)IJIWinReg.REG_BINARY);
+		this.types.put(this.REG_DWORD, (Integer)IJIWinReg.REG_DWORD);
+		
+		this.cache = new RegistryCache(MAX_CACHED_VALUES);
+		this.valueTypes = new LinkedHashMap<String, Integer>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+				return this.size() > MAX_VALUE_TYPES;
+			}
+		};
 	}
 		
 	/**
@@ -47,27 +128,66 @@ public class Registry {
 	 * 
 	 * @param keyPath Path to the key in the registry
 	 * @param key Key to access
-	 * @param expectedSize the expected size of the value in the registry
+	 * @param expectedSize the expected size of the value in the registry, 0 to size the read adaptively
 	 * @throws JIException 
 	 * @throws UnknownHostException 
 	 */
 	public String[] getKey(String keyPath, String key, int expectedSize) throws JIException, UnknownHostException {
-		// Get a handle for talking to the registry
-		RegistryHandle handle = new RegistryHandle(this.address, this.authInfo);
+		return this.getValue(keyPath, key, expectedSize).format();
+	}
+	
+	/**
+	 * Retrieve a decoded value from the registry.
+	 * 
+	 * @param keyPath Path to the key in the registry
+	 * @param key Key to access
+	 * @param expectedSize the expected size of the value in the registry, 0 to size the read adaptively
+	 * @throws JIException 
+	 * @throws UnknownHostException 
+	 */
+	public synchronized RegistryData getValue(String keyPath, String key, int expectedSize) throws JIException, UnknownHostException {
+		RegistryData data = this.getCached(keyPath, key);
+		if (data != null)
+			return data;
+		
+		try {
+			return this.queryValue(this.getHandle(), keyPath, key, expectedSize);
+		} catch (JIException e) {
+			RegistryHandle handle = this.recover(keyPath, e);
+			if (handle == null)
+				throw e;
+			return this.queryValue(handle, keyPath, key, expectedSize);
+		}
+	}
 
+	/**
+	 * Retrieve a decoded value from the registry.
+	 * 
+	 * @param keyPath Path to the key in the registry
+	 * @param key Key to access
+	 * @throws JIException 
+	 * @throws UnknownHostException 
+	 */
+	public RegistryData getValue(String keyPath, String key) throws JIException, UnknownHostException {
+		return this.getValue(keyPath, key, 0);
+	}
+	
+	private RegistryData queryValue(RegistryHandle handle, String keyPath, String key, int expectedSize) throws JIException {
 		// Get the key that we are looking for
 		JIPolicyHandle regkey = handle.openKey(keyPath);
 		
 		// Access the value of that key
-		Object[] data = handle.registry.winreg_QueryValue(regkey, key, expectedSize);
+		Object[] data = null;
+		if (expectedSize > 0)
+			data = handle.registry.winreg_QueryValue(regkey, key, expectedSize);
+		else
+			data = readValue(handle.registry, regkey, keyPath, key);
+		this.putType(keyPath, key, (Integer)data[0]);
 
-		// Format output into a string array.
-		String[] output = this.formatOutput(data);
-		
-		// Close the registry connection
-		handle.closeConnection();
-		
-		return output;
+		RegistryData value = RegistryData.decode(data);
+		if (this.cache.isEnabled())
+			this.cache.put(keyPath, key, value);
+		return value;
 	}
 	
 	/**
@@ -79,7 +199,386 @@ public class Registry {
 	 * @throws UnknownHostException 
 	 */
 	public String[] getKey(String keyPath, String key) throws UnknownHostException, JIException {
-		return this.getKey(keyPath, key, 2*1024*1024);
+		return this.getKey(keyPath, key, 0);
+	}
+
+	/**
+	 * Read many values in one call. Values are grouped by key so that each
+	 * key is opened once, and all reads share the registry connection.
+	 * Failures are reported per value rather than failing the batch.
+	 * 
+	 * @param items pairs of key path and value name
+	 * @return results keyed by "keyPath\\name", in request order
+	 * @throws JIException if the registry connection can't be established
+	 * @throws UnknownHostException 
+	 */
+	public synchronized LinkedHashMap<String, RegistryValue> getKeys(String[][] items) throws UnknownHostException, JIException {
+		// Group the requested values by key, keeping request order
+		LinkedHashMap<String, ArrayList<RegistryValue>> byKey = new LinkedHashMap<String, ArrayList<RegistryValue>>();
+		LinkedHashMap<String, RegistryValue> results = new LinkedHashMap<String, RegistryValue>();
+		for (String[] item : items) {
+			RegistryValue value = new RegistryValue(item[0], item[1]);
+			results.put(item[0] + "\\" + item[1], value);
+			
+			String group = item[0].toLowerCase();
+			ArrayList<RegistryValue> values = byKey.get(group);
+			if (values == null) {
+				values = new ArrayList<RegistryValue>();
+				byKey.put(group, values);
+			}
+			values.add(value);
+		}
+		
+		RegistryHandle handle = this.getHandle();
+		for (ArrayList<RegistryValue> values : byKey.values()) {
+			boolean retried = false;
+			for (int i=0; i<values.size(); i++) {
+				RegistryValue value = values.get(i);
+				RegistryData cached = this.getCached(value.getKeyPath(), value.getName());
+				if (cached != null) {
+					value.setData(cached.format());
+					continue;
+				}
+				try {
+					value.setData(this.queryValue(handle, value.getKeyPath(), value.getName(), 0).format());
+				} catch (JIException e) {
+					RegistryHandle retry = retried ? null : this.recover(value.getKeyPath(), e);
+					if (retry != null) {
+						// Retry this value with a fresh key handle or
+						// connection, once per key
+						handle = retry;
+						retried = true;
+						i--;
+						continue;
+					}
+					value.setError(e.getErrorCode());
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Walk a subtree depth first, passing every value to a handler as it is
+	 * read. Only the keys on the current path are held open, so memory use
+	 * doesn't depend on the size of the subtree. Keys are opened read only.
+	 * 
+	 * @param keyPath key to start at
+	 * @param maxDepth levels of subkeys to descend into, 0 for only the values
+	 *        of keyPath itself, negative for no limit
+	 * @param include only report values whose "keyPath\\name" matches, may be null
+	 * @param exclude skip keys whose path matches, and everything below them, may be null
+	 * @param handler receives the values
+	 * @throws JIException 
+	 * @throws UnknownHostException 
+	 */
+	public synchronized void walk(String keyPath, int maxDepth, Pattern include, Pattern exclude, RegistryEntryHandler handler) throws UnknownHostException, JIException {
+		RegistryHandle handle;
+		JIPolicyHandle key;
+		try {
+			handle = this.getHandle();
+			key = handle.openUncachedKey(keyPath, IJIWinReg.KEY_READ);
+		} catch (JIException e) {
+			if (!this.isDisconnect(e))
+				throw e;
+			handle = this.reconnect(e);
+			key = handle.openUncachedKey(keyPath, IJIWinReg.KEY_READ);
+		}
+		
+		// Values already handed out can't be taken back, so there is no
+		// retry once the walk has started.
+		try {
+			this.walk(handle, key, keyPath, maxDepth, include, exclude, handler);
+		} finally {
+			handle.closeKey(key);
+		}
+	}
+	
+	private void walk(RegistryHandle handle, JIPolicyHandle key, String keyPath, int depth, Pattern include, Pattern exclude, RegistryEntryHandler handler) throws JIException {
+		// Values first
+		for (int i=0; ; i++) {
+			Object[] value;
+			try {
+				value = handle.registry.winreg_EnumValue(key, i);
+			} catch (JIException e) {
+				if (e.getErrorCode() == ERROR_NO_MORE_ITEMS)
+					break;
+				throw e;
+			}
+			
+			String name = (String)value[0];
+			if (include != null && !include.matcher(keyPath + "\\" + name).find())
+				continue;
+			
+			String[] data = null;
+			try {
+				data = formatOutput(readValue(handle.registry, key, keyPath, name));
+			} catch (JIException e) {
+				// Unsupported types can still be listed
+				if (this.isDisconnect(e))
+					throw e;
+			}
+			handler.handleEntry(keyPath, name, ((Integer)value[1]).intValue(), data);
+		}
+		
+		if (depth == 0)
+			return;
+		
+		// Then subkeys, one at a time
+		for (int i=0; ; i++) {
+			String[] subkey;
+			try {
+				subkey = handle.registry.winreg_EnumKey(key, i);
+			} catch (JIException e) {
+				if (e.getErrorCode() == ERROR_NO_MORE_ITEMS)
+					break;
+				throw e;
+			}
+			
+			String path = keyPath + "\\" + subkey[0];
+			if (exclude != null && exclude.matcher(path).find())
+				continue;
+			
+			JIPolicyHandle child;
+			try {
+				child = handle.openUncachedKey(path, IJIWinReg.KEY_READ);
+			} catch (JIException e) {
+				// Keys we may not read are skipped
+				if (this.isDisconnect(e))
+					throw e;
+				continue;
+			}
+			
+			try {
+				this.walk(handle, child, path, depth - 1, include, exclude, handler);
+			} finally {
+				handle.closeKey(child);
+			}
+		}
+	}
+	
+	/**
+	 * Read a few values from every subkey of a key, such as the products
+	 * under an Uninstall key. Keys are opened read only and their handles
+	 * aren't cached, and values are always read from the system. Large
+	 * keys are split over up to MAX_HANDLES connections read in parallel.
+	 * 
+	 * @param keyPath key whose subkeys to read
+	 * @param names names of the values to read from each subkey
+	 * @return values in names order, null where missing, keyed by subkey
+	 *         path in enumeration order; subkeys that can't be opened are left out
+	 * @throws JIException 
+	 * @throws UnknownHostException 
+	 */
+	public synchronized LinkedHashMap<String, RegistryData[]> readSubkeys(String keyPath, final String[] names) throws UnknownHostException, JIException {
+		ArrayList<String> paths;
+		try {
+			paths = this.listSubkeys(this.getHandle(), keyPath);
+		} catch (JIException e) {
+			if (!this.isDisconnect(e))
+				throw e;
+			paths = this.listSubkeys(this.reconnect(e), keyPath);
+		}
+		
+		int count = Math.min(MAX_HANDLES, paths.size() / SUBKEYS_PER_HANDLE);
+		if (count <= 1)
+			return this.readSubkeys(0, paths, names);
+		
+		// Each connection reads a contiguous share so the results can be
+		// merged back in enumeration order
+		ExecutorService executor = Executors.newFixedThreadPool(count);
+		try {
+			ArrayList<Future<LinkedHashMap<String, RegistryData[]>>> futures = new ArrayList<Future<LinkedHashMap<String, RegistryData[]>>>();
+			for (int slot=0; slot<count; slot++) {
+				final int handleSlot = slot;
+				final List<String> share = paths.subList(paths.size() * slot / count, paths.size() * (slot + 1) / count);
+				futures.add(executor.submit(new Callable<LinkedHashMap<String, RegistryData[]>>() {
+					public LinkedHashMap<String, RegistryData[]> call() throws Exception {
+						return readSubkeys(handleSlot, share, names);
+					}
+				}));
+			}
+			
+			LinkedHashMap<String, RegistryData[]> results = new LinkedHashMap<String, RegistryData[]>();
+			for (Future<LinkedHashMap<String, RegistryData[]>> future : futures)
+				results.putAll(this.get(future));
+			return results;
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	private ArrayList<String> listSubkeys(RegistryHandle handle, String keyPath) throws JIException {
+		ArrayList<String> paths = new ArrayList<String>();
+		JIPolicyHandle key = handle.openUncachedKey(keyPath, IJIWinReg.KEY_READ);
+		try {
+			for (int i=0; ; i++) {
+				String[] subkey;
+				try {
+					subkey = handle.registry.winreg_EnumKey(key, i);
+				} catch (JIException e) {
+					if (e.getErrorCode() == ERROR_NO_MORE_ITEMS)
+						break;
+					throw e;
+				}
+				paths.add(keyPath + "\\" + subkey[0]);
+			}
+		} finally {
+			handle.closeKey(key);
+		}
+		return paths;
+	}
+	
+	/**
+	 * Read values from a share of the subkeys over one connection. Called
+	 * from readSubkeys' workers, each of which owns its slot for the call.
+	 */
+	private LinkedHashMap<String, RegistryData[]> readSubkeys(int slot, List<String> paths, String[] names) throws UnknownHostException, JIException {
+		try {
+			return this.readSubkeys(this.getHandle(slot), paths, names);
+		} catch (JIException e) {
+			if (!this.isDisconnect(e))
+				throw e;
+			return this.readSubkeys(this.reconnect(slot, e), paths, names);
+		}
+	}
+	
+	private LinkedHashMap<String, RegistryData[]> readSubkeys(RegistryHandle handle, List<String> paths, String[] names) throws JIException {
+		LinkedHashMap<String, RegistryData[]> results = new LinkedHashMap<String, RegistryData[]>();
+		for (String path : paths) {
+			JIPolicyHandle child;
+			try {
+				child = handle.openUncachedKey(path, IJIWinReg.KEY_READ);
+			} catch (JIException e) {
+				// Removed since it was listed, or not readable
+				if (this.isDisconnect(e))
+					throw e;
+				continue;
+			}
+			
+			try {
+				RegistryData[] values = new RegistryData[names.length];
+				for (int i=0; i<names.length; i++) {
+					try {
+						values[i] = RegistryData.decode(readValue(handle.registry, child, path, names[i]));
+					} catch (JIException e) {
+						if (e.getErrorCode() != ERROR_FILE_NOT_FOUND)
+							throw e;
+					}
+				}
+				results.put(path, values);
+			} finally {
+				handle.closeKey(child);
+			}
+		}
+		return results;
+	}
+	
+	private LinkedHashMap<String, RegistryData[]> get(Future<LinkedHashMap<String, RegistryData[]>> future) throws UnknownHostException, JIException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JIException(-1, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof JIException)
+				throw (JIException)cause;
+			if (cause instanceof UnknownHostException)
+				throw (UnknownHostException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new JIException(-1, cause);
+		}
+	}
+	
+	/**
+	 * Read a value from an open key. winreg_QueryValue allocates and
+	 * advertises a buffer of the requested size on every call, so the read
+	 * starts with the largest size seen under this key, or a small default,
+	 * and is retried once with the maximum size if the value doesn't fit.
+	 * j-interop doesn't hand back the size the server asked for, so the
+	 * retry can't be exact; the size actually returned is remembered for
+	 * the next read instead.
+	 * @param registry winreg connection
+	 * @param key open key
+	 * @param keyPath path of the open key, used to look up size hints
+	 * @param name value name
+	 * @return type and data as returned by winreg_QueryValue
+	 * @throws JIException
+	 */
+	static Object[] readValue(IJIWinReg registry, JIPolicyHandle key, String keyPath, String name) throws JIException {
+		String hintKey = keyPath.toLowerCase();
+		int size = getSizeHint(hintKey);
+		
+		Object[] data = null;
+		try {
+			data = registry.winreg_QueryValue(key, name, size);
+		} catch (JIException e) {
+			if (e.getErrorCode() != ERROR_MORE_DATA || size >= MAX_VALUE_SIZE)
+				throw e;
+			data = registry.winreg_QueryValue(key, name, MAX_VALUE_SIZE);
+		}
+		
+		putSizeHint(hintKey, dataSize(data));
+		return data;
+	}
+	
+	private static int getSizeHint(String hintKey) {
+		synchronized (sizeHints) {
+			Integer size = sizeHints.get(hintKey);
+			return size == null ? INITIAL_VALUE_SIZE : size.intValue();
+		}
+	}
+	
+	/**
+	 * Remember the buffer size needed for a value, rounded up to a power of
+	 * two. Hints only grow, so values of different sizes under one key
+	 * settle on the largest.
+	 */
+	private static void putSizeHint(String hintKey, int needed) {
+		int size = INITIAL_VALUE_SIZE;
+		while (size < needed && size < MAX_VALUE_SIZE)
+			size *= 2;
+		
+		synchronized (sizeHints) {
+			Integer old = sizeHints.get(hintKey);
+			if (old != null && old.intValue() >= size)
+				return;
+			if (old == null && size == INITIAL_VALUE_SIZE)
+				return;
+			sizeHints.put(hintKey, new Integer(size));
+		}
+	}
+	
+	/**
+	 * Estimate the size of a value on the wire, strings being sent as UTF-16.
+	 * @param data return from winreg_QueryValue
+	 */
+	private static int dataSize(Object[] data) {
+		if (data[1] instanceof byte[][]) {
+			int size = 2;
+			for (byte[] line : (byte[][])data[1])
+				size += (line.length + 1) * 2;
+			return size;
+		} else if (data[1] instanceof byte[]) {
+			int dtype = ((Integer)data[0]).intValue();
+			int length = ((byte[])data[1]).length;
+			if (dtype == IJIWinReg.REG_SZ || dtype == IJIWinReg.REG_EXPAND_SZ)
+				return (length + 1) * 2;
+			return length;
+		}
+		return 0;
+	}
+	
+	/**
+	 * Get the name of a registry data type.
+	 * @param type registry data type
+	 */
+	public static String typeName(int type) {
+		if (type >= 0 && type < TYPE_NAMES.length)
+			return TYPE_NAMES[type];
+		return Integer.toString(type);
 	}
 
 	/**
@@ -88,21 +587,44 @@ public class Registry {
 	 * @param keyPath Path to the key in the registry
 	 * @param key Key to set
 	 * @param values Array of strings to set as the value of key
+	 * @param dtype registry data type, null to keep the type of an existing
+	 *        value or use REG_MULTI_SZ for a new one
 	 * @throws JIException 
 	 * @throws UnknownHostException 
 	 */
-	public void setKey(String keyPath, String key, String[] values, Integer dtype) throws UnknownHostException, JIException {
-		// Get a handle for talking to the registry
-		RegistryHandle handle = new RegistryHandle(this.address, this.authInfo);
+	public synchronized void setKey(String keyPath, String key, String[] values, Integer dtype) throws UnknownHostException, JIException {
+		try {
+			this.setValue(this.getHandle(), keyPath, key, values, dtype);
+		} catch (JIException e) {
+			RegistryHandle handle = this.recover(keyPath, e);
+			if (handle == null)
+				throw e;
+			this.setValue(handle, keyPath, key, values, dtype);
+		}
+	}
 		
+	private void setValue(RegistryHandle handle, String keyPath, String key, String[] values, Integer dtype) throws JIException {
 		// Get an instance of the key to modify
 		JIPolicyHandle regkey = handle.openKey(keyPath);
+		this.writeValue(handle, regkey, keyPath, key, values, dtype);
+	}
 
-		// Read the key to get the type
-		try {
-			Object[] oldData = handle.registry.winreg_QueryValue(regkey, key, 2*1024*1024);
-			dtype = (Integer)oldData[0];
-		} catch(JIException e) {
+	private void writeValue(RegistryHandle handle, JIPolicyHandle regkey, String keyPath, String key, String[] values, Integer dtype) throws JIException {
+		this.cache.invalidate(keyPath, key);
+		
+		// Read the key to get the type, unless it was given or is known
+		if (dtype == null)
+			dtype = this.getType(keyPath, key);
+		if (dtype == null) {
+			this.typeProbes++;
+			try {
+				Object[] oldData = readValue(handle.registry, regkey, keyPath, key);
+				dtype = (Integer)oldData[0];
+			} catch(JIException e) {
+				if (this.isDisconnect(e) || this.isStaleKey(e))
+					throw e;
+				dtype = IJIWinReg.REG_MULTI_SZ;
+			}
 		}
 		
 		// Create and set the new data
@@ -110,34 +632,103 @@ public class Registry {
 			int regData = Integer.parseInt(values[0]);
 			handle.registry.winreg_SetValue(regkey, key, regData);			
 		} else if (dtype == IJIWinReg.REG_SZ || dtype == IJIWinReg.REG_EXPAND_SZ) {
-			byte[] regData = values[0].getBytes();
+			byte[] regData = RegistryData.encodeString(values[0]);
 			handle.registry.winreg_SetValue(regkey, key, regData, false, dtype == IJIWinReg.REG_SZ);			
 		} else if (dtype == IJIWinReg.REG_BINARY) {
-			byte[] regData = new byte[values.length];
-			for (int i=0; i<values.length; i++) { 
-				String bs = values[i].substring(2); // ignore the 0x when we convert it to a byte
-				regData[i] =  (byte)(Integer.parseInt(bs, 16));
-			}
+			byte[] regData = RegistryData.parseHex(values);
 			handle.registry.winreg_SetValue(regkey, key, regData, true, false);			
 		} else {
 			// It must be a REG_MULTI_SZ
 			byte[][] regData = new byte[values.length][];
 			for (int i=0; i<values.length; i++) {
-				regData[i] = values[i].getBytes();
+				regData[i] = RegistryData.encodeString(values[i]);
 			}
 			handle.registry.winreg_SetValue(regkey, key, regData);			
+			dtype = IJIWinReg.REG_MULTI_SZ;
+		}
+		this.putType(keyPath, key, dtype);
+	}
+	
+	/**
+	 * Set many values under one key. The key is opened once and all writes
+	 * share the registry connection. Failures are reported per value rather
+	 * than failing the batch.
+	 * 
+	 * @param keyPath Path to the key in the registry
+	 * @param values data to set, keyed by value name
+	 * @param dtype registry data type for all values, null to keep the type
+	 *        of each existing value
+	 * @return results keyed by value name, in request order
+	 * @throws JIException if the key can't be opened
+	 * @throws UnknownHostException 
+	 */
+	public synchronized LinkedHashMap<String, RegistryValue> setKeys(String keyPath, LinkedHashMap<String, String[]> values, Integer dtype) throws UnknownHostException, JIException {
+		LinkedHashMap<String, RegistryValue> results = new LinkedHashMap<String, RegistryValue>();
+		for (String name : values.keySet())
+			results.put(name, new RegistryValue(keyPath, name));
+		
+		RegistryHandle handle = this.getHandle();
+		JIPolicyHandle regkey;
+		try {
+			regkey = handle.openKey(keyPath);
+		} catch (JIException e) {
+			if (!this.isDisconnect(e))
+				throw e;
+			handle = this.reconnect(e);
+			regkey = handle.openKey(keyPath);
 		}
 		
-		// Tear down connection
-		handle.closeConnection();
+		boolean retried = false;
+		ArrayList<RegistryValue> pending = new ArrayList<RegistryValue>(results.values());
+		for (int i=0; i<pending.size(); i++) {
+			RegistryValue value = pending.get(i);
+			String[] data = values.get(value.getName());
+			try {
+				this.writeValue(handle, regkey, keyPath, value.getName(), data, dtype);
+				value.setData(data);
+			} catch (JIException e) {
+				RegistryHandle retry = retried ? null : this.recover(keyPath, e);
+				if (retry != null) {
+					// Retry this value with a fresh key handle or
+					// connection, once per batch
+					handle = retry;
+					regkey = handle.openKey(keyPath);
+					retried = true;
+					i--;
+					continue;
+				}
+				value.setError(e.getErrorCode());
+			} catch (NumberFormatException e) {
+				value.setError(ERROR_INVALID_DATA);
+			}
+		}
+		return results;
+	}
+	
+	private RegistryData getCached(String keyPath, String key) {
+		if (!this.cache.isEnabled())
+			return null;
+		return this.cache.get(keyPath, key);
+	}
+	
+	private Integer getType(String keyPath, String key) {
+		synchronized (this.valueTypes) {
+			return this.valueTypes.get((keyPath + "\\" + key).toLowerCase());
+		}
+	}
+	
+	private void putType(String keyPath, String key, Integer dtype) {
+		synchronized (this.valueTypes) {
+			this.valueTypes.put((keyPath + "\\" + key).toLowerCase(), dtype);
+		}
 	}
 	
 	public void setKey(String keyPath, String key, String[] values, String dtype) throws UnknownHostException, JIException {
-		this.setKey(keyPath, key, values, (Integer)this.types.get(dtype));
+		this.setKey(keyPath, key, values, dtype == null ? null : (Integer)this.types.get(dtype));
 	}
 	
 	public void setKey(String keyPath, String key, String[] values) throws UnknownHostException, JIException {
-		this.setKey(keyPath, key, values, IJIWinReg.REG_MULTI_SZ);
+		this.setKey(keyPath, key, values, (Integer)null);
 	}
 
 	/**
@@ -148,9 +739,19 @@ public class Registry {
 	 * @throws JIException 
 	 * @throws UnknownHostException 
 	 */
-	public void createKey(String keyPath, String key) throws JIException, UnknownHostException {
-		// Get a handle for talking to the registry
-		RegistryHandle handle = new RegistryHandle(this.address, this.authInfo);
+	public synchronized void createKey(String keyPath, String key) throws JIException, UnknownHostException {
+		try {
+			this.createSubKey(this.getHandle(), keyPath, key);
+		} catch (JIException e) {
+			RegistryHandle handle = this.recover(keyPath, e);
+			if (handle == null)
+				throw e;
+			this.createSubKey(handle, keyPath, key);
+		}
+	}
+		
+	private void createSubKey(RegistryHandle handle, String keyPath, String key) throws JIException {
+		this.cache.invalidateTree(keyPath + "\\" + key);
 		
 		// Get an instance of the key to create
 		JIPolicyHandle regkey = handle.openKey(keyPath);
@@ -158,9 +759,167 @@ public class Registry {
 		// Create the new key
 		JIPolicyHandle newKey = handle.registry.winreg_CreateKey(regkey, key, IJIWinReg.REG_OPTION_NON_VOLATILE, IJIWinReg.KEY_ALL_ACCESS);
 		handle.registry.winreg_CloseKey(newKey);
+	}
+	
+	/**
+	 * Tear down the registry connections.
+	 * @throws JIException
+	 */
+	public synchronized void close() throws JIException {
+		if (this.handles[0] == null)
+			return;
+		
+		JISystem.getLogger().info(this.address + ": " + this.getKeysOpened() + " registry keys opened, "
+				+ this.getKeyHits() + " cached, " + this.reconnects + " reconnects, "
+				+ this.typeProbes + " type probes");
 		
-		// Tear down the connection to the registry
-		handle.closeConnection();
+		// Close every connection even if one fails, then report the first
+		JIException error = null;
+		for (int i=0; i<this.handles.length; i++) {
+			RegistryHandle handle = this.handles[i];
+			this.handles[i] = null;
+			if (handle == null)
+				continue;
+			try {
+				handle.closeConnection();
+			} catch (JIException e) {
+				if (error == null)
+					error = e;
+			}
+		}
+		if (error != null)
+			throw error;
+	}
+	
+	/**
+	 * @return number of times the registry connection was reestablished
+	 */
+	public synchronized int getReconnectCount() {
+		return this.reconnects;
+	}
+	
+	/**
+	 * Get the value cache. Values are only cached once a TTL is set on it.
+	 */
+	public RegistryCache getCache() {
+		return this.cache;
+	}
+	
+	/**
+	 * Get counters for the connection and caches, in a fixed order.
+	 * @return counter values keyed by name
+	 */
+	public synchronized LinkedHashMap<String, Long> getStats() {
+		LinkedHashMap<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("cacheHits", new Long(this.cache.getHits()));
+		stats.put("cacheMisses", new Long(this.cache.getMisses()));
+		stats.put("cacheSize", new Long(this.cache.size()));
+		stats.put("keysOpened", new Long(this.getKeysOpened()));
+		stats.put("keyHits", new Long(this.getKeyHits()));
+		stats.put("reconnects", new Long(this.reconnects));
+		stats.put("typeProbes", new Long(this.typeProbes));
+		return stats;
+	}
+	
+	/**
+	 * @return number of writes that had to read a value to learn its type
+	 */
+	public synchronized int getTypeProbes() {
+		return this.typeProbes;
+	}
+	
+	private int getKeysOpened() {
+		int count = 0;
+		for (RegistryHandle handle : this.handles)
+			if (handle != null)
+				count += handle.getKeysOpened();
+		return count;
+	}
+	
+	private int getKeyHits() {
+		int count = 0;
+		for (RegistryHandle handle : this.handles)
+			if (handle != null)
+				count += handle.getKeyHits();
+		return count;
+	}
+	
+	/**
+	 * Get the shared registry connection, connecting if needed.
+	 */
+	private RegistryHandle getHandle() throws UnknownHostException, JIException {
+		return this.getHandle(0);
+	}
+	
+	/**
+	 * Get one of the registry connections, connecting if needed. A slot is
+	 * only used by one thread at a time.
+	 * @param slot index of the connection
+	 */
+	private RegistryHandle getHandle(int slot) throws UnknownHostException, JIException {
+		if (this.handles[slot] == null)
+			this.handles[slot] = new RegistryHandle(this.address, this.authInfo);
+		return this.handles[slot];
+	}
+	
+	/**
+	 * Replace the shared registry connection after it failed.
+	 * @param cause error the old connection failed with
+	 */
+	private RegistryHandle reconnect(JIException cause) throws UnknownHostException, JIException {
+		return this.reconnect(0, cause);
+	}
+	
+	/**
+	 * Replace a failed registry connection.
+	 * @param slot index of the connection
+	 * @param cause error the old connection failed with
+	 */
+	private RegistryHandle reconnect(int slot, JIException cause) throws UnknownHostException, JIException {
+		JISystem.getLogger().info(this.address + ": registry connection lost, reconnecting: " + cause.getMessage());
+		if (this.handles[slot] != null) {
+			this.handles[slot].abandon();
+			this.handles[slot] = null;
+		}
+		// readSubkeys' workers may reconnect at the same time
+		synchronized (this.handles) {
+			this.reconnects++;
+		}
+		return this.getHandle(slot);
+	}
+	
+	/**
+	 * Work out how to retry a call that failed. A stale cached handle for
+	 * the key is closed so the retry opens it again, a failed connection is
+	 * replaced.
+	 * @param keyPath key the call used
+	 * @param e error the call failed with
+	 * @return handle to retry on, null if the call shouldn't be retried
+	 */
+	private RegistryHandle recover(String keyPath, JIException e) throws UnknownHostException, JIException {
+		RegistryHandle handle = this.handles[0];
+		if (handle != null && this.isStaleKey(e) && handle.forgetKey(keyPath))
+			return handle;
+		if (this.isDisconnect(e))
+			return this.reconnect(e);
+		return null;
+	}
+	
+	/**
+	 * Check if an error means that a key handle is no longer valid.
+	 */
+	private boolean isStaleKey(JIException e) {
+		return e.getErrorCode() == ERROR_KEY_DELETED
+				|| e.getErrorCode() == ERROR_INVALID_HANDLE;
+	}
+	
+	/**
+	 * Check if an error means the connection, rather than the call, failed.
+	 * Transport errors from the SMB named pipe come through as the cause.
+	 */
+	private boolean isDisconnect(JIException e) {
+		return e.getCause() instanceof IOException
+				|| e.getErrorCode() == ERROR_INVALID_HANDLE;
 	}
 	
 	/**
@@ -193,42 +952,7 @@ public class Registry {
 	 * @param data return from winreg_QueryValue
 	 * @return array of strings
 	 */
-	private String[] formatOutput(Object[] data) {
-		String[] output = null;
-		
-		Integer dtype = (Integer)data[0];
-
-		// Handle simple non-list type
-		if (dtype == IJIWinReg.REG_SZ || dtype == IJIWinReg.REG_EXPAND_SZ) {
-			String s = new String((byte[])data[1]);
-			output = new String[]{s, };
-			return output;
-		} else if (dtype == IJIWinReg.REG_BINARY) {
-			byte[] b = ((byte[])data[1]);
-			output = new String[b.length];
-			for (int i=0; i<b.length; i++) 
-				output[i] = "0x" + Integer.toHexString(b[i]);
-			return output;
-		} else if (dtype == IJIWinReg.REG_DWORD) {
-			int i = arr2int((byte[])(data[1]), 0);
-			String s = Integer.toString(i);
-			output = new String[]{s, };
-			return output;
-		}	
-		// And now for the more complex results
-		byte[][] lines = (byte[][])data[1];
-		
-		// Find the first null line
-		int size = 0;
-		while (lines[size] != null)
-			size++;
-		
-		output = new String[size];
-		
-		for (int i=0; i<output.length; i++) {
-			output[i] = new String(lines[i]);
-		}
-		
-		return output;
+	static String[] formatOutput(Object[] data) {
+		return RegistryData.decode(data).format();
 	}
 }
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2010 rPath, Inc.
+ */
+package com.rpath.management.windows;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class for caching registry values read from one system.
+ *
+ * Values are kept for the TTL of the longest matching key path prefix, or
+ * the default TTL, and the least recently used are evicted once the cache
+ * is full. Caching is off until a TTL is set. Writes through the owning
+ * Registry drop the values they change.
+ */
+public class RegistryCache {
+	private int maxSize;
+	private long defaultTtl = 0;
+
+	// TTLs by lowercased key path prefix
+	private LinkedHashMap<String, Long> ttls = new LinkedHashMap<String, Long>();
+	private LinkedHashMap<String, Entry> entries = null;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	private static class Entry {
+		RegistryData data;
+		long expires;
+
+		Entry(RegistryData data, long expires) {
+			this.data = data;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param maxSize maximum number of values to keep
+	 */
+	public RegistryCache(final int maxSize) {
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return this.size() > RegistryCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Set how long values are kept unless a key path TTL applies.
+	 * @param ttl milliseconds, 0 to not cache
+	 */
+	public synchronized void setTtl(long ttl) {
+		this.defaultTtl = ttl;
+	}
+
+	/**
+	 * Set how long values under a key are kept.
+	 * @param keyPath key path prefix
+	 * @param ttl milliseconds, 0 to not cache values under this key
+	 */
+	public synchronized void setTtl(String keyPath, long ttl) {
+		this.ttls.put(keyPath.toLowerCase(), new Long(ttl));
+	}
+
+	/**
+	 * Check if any values are cached at all.
+	 */
+	public synchronized boolean isEnabled() {
+		if (this.defaultTtl > 0)
+			return true;
+		for (Long ttl : this.ttls.values()) {
+			if (ttl.longValue() > 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Look up a value.
+	 * @return the cached value, null if it isn't cached or has expired
+	 */
+	public synchronized RegistryData get(String keyPath, String name) {
+		String key = makeKey(keyPath, name);
+		Entry entry = this.entries.get(key);
+		if (entry != null && entry.expires <= System.currentTimeMillis()) {
+			this.entries.remove(key);
+			entry = null;
+		}
+
+		if (entry == null) {
+			this.misses++;
+			return null;
+		}
+		this.hits++;
+		return entry.data;
+	}
+
+	/**
+	 * Store a value just read, if values under its key are cached.
+	 */
+	public synchronized void put(String keyPath, String name, RegistryData data) {
+		long ttl = this.getTtl(keyPath.toLowerCase());
+		if (ttl <= 0)
+			return;
+		this.entries.put(makeKey(keyPath, name), new Entry(data, System.currentTimeMillis() + ttl));
+	}
+
+	/**
+	 * Drop a value.
+	 */
+	public synchronized void invalidate(String keyPath, String name) {
+		this.entries.remove(makeKey(keyPath, name));
+	}
+
+	/**
+	 * Drop all values under a key and its subkeys.
+	 */
+	public synchronized void invalidateTree(String keyPath) {
+		String prefix = keyPath.toLowerCase() + "\\";
+		Iterator<String> it = this.entries.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().startsWith(prefix))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Drop all values.
+	 */
+	public synchronized void clear() {
+		this.entries.clear();
+	}
+
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Find the TTL of the longest configured prefix of a key path.
+	 * @param keyPath lowercased key path
+	 */
+	private long getTtl(String keyPath) {
+		long ttl = this.defaultTtl;
+		int matched = -1;
+		for (Map.Entry<String, Long> entry : this.ttls.entrySet()) {
+			String prefix = entry.getKey();
+			if (prefix.length() > matched && (keyPath.equals(prefix) || keyPath.startsWith(prefix + "\\"))) {
+				ttl = entry.getValue().longValue();
+				matched = prefix.length();
+			}
+		}
+		return ttl;
+	}
+
+	private static String makeKey(String keyPath, String name) {
+		return (keyPath + "\\" + name).toLowerCase();
+	}
+}
@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) 2010 rPath, Inc.
+ */
+package com.rpath.management.windows;
+
+import java.io.UnsupportedEncodingException;
+
+import org.jinterop.winreg.IJIWinReg;
+
+/**
+ * Class for holding a decoded registry value.
+ *
+ * Integers are decoded to a long, strings to String and REG_MULTI_SZ to
+ * String[]. Binary and any other data is kept as the byte array j-interop
+ * returned, without copying.
+ *
+ * j-interop has already narrowed string data from UTF-16 to one byte per
+ * character when it hands it over, so strings are decoded as ISO-8859-1,
+ * which maps those bytes back to the same characters, rather than with the
+ * platform charset.
+ */
+public class RegistryData {
+	// Types IJIWinReg has no constants for
+	public static final int REG_DWORD_BIG_ENDIAN = 5;
+	public static final int REG_LINK = 6;
+	public static final int REG_QWORD = 11;
+
+	private static final String CHARSET = "ISO-8859-1";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private int type;
+	private Object value;
+
+	private RegistryData(int type, Object value) {
+		this.type = type;
+		this.value = value;
+	}
+
+	/**
+	 * Decode the result of winreg_QueryValue.
+	 * @param data type and data as returned by winreg_QueryValue
+	 */
+	public static RegistryData decode(Object[] data) {
+		int type = ((Integer)data[0]).intValue();
+		Object raw = data[1];
+
+		if (raw == null)
+			return new RegistryData(type, null);
+
+		if (raw instanceof byte[][])
+			return new RegistryData(type, decodeStrings((byte[][])raw));
+
+		byte[] bytes = (byte[])raw;
+		switch (type) {
+			case IJIWinReg.REG_SZ:
+			case IJIWinReg.REG_EXPAND_SZ:
+			case REG_LINK:
+				return new RegistryData(type, decodeString(bytes, 0, bytes.length));
+			case IJIWinReg.REG_DWORD:
+				if (bytes.length >= 4)
+					return new RegistryData(type, new Long(Registry.arr2int(bytes, 0) & 0xffffffffL));
+				break;
+			case REG_DWORD_BIG_ENDIAN:
+				if (bytes.length >= 4) {
+					long value = 0;
+					for (int i=0; i<4; i++)
+						value = (value << 8) | (bytes[i] & 0xff);
+					return new RegistryData(type, new Long(value));
+				}
+				break;
+			case REG_QWORD:
+				if (bytes.length >= 8) {
+					long value = 0;
+					for (int i=7; i>=0; i--)
+						value = (value << 8) | (bytes[i] & 0xff);
+					return new RegistryData(type, new Long(value));
+				}
+				break;
+		}
+		return new RegistryData(type, bytes);
+	}
+
+	/**
+	 * @return registry data type
+	 */
+	public int getType() {
+		return this.type;
+	}
+
+	/**
+	 * @return the decoded value: Long, String, String[], byte[] or null
+	 */
+	public Object getValue() {
+		return this.value;
+	}
+
+	public boolean isNumber() {
+		return this.value instanceof Long;
+	}
+
+	/**
+	 * @return the value of an integer type, unsigned
+	 */
+	public long getLong() {
+		return ((Long)this.value).longValue();
+	}
+
+	/**
+	 * @return the value of a string type, the first line of REG_MULTI_SZ
+	 */
+	public String getString() {
+		if (this.value instanceof String[]) {
+			String[] lines = (String[])this.value;
+			return lines.length == 0 ? null : lines[0];
+		} else if (this.value instanceof String) {
+			return (String)this.value;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the lines of REG_MULTI_SZ, or a string type as one line
+	 */
+	public String[] getStrings() {
+		// Values may be shared through the cache, hand out a copy
+		if (this.value instanceof String[])
+			return ((String[])this.value).clone();
+		if (this.value instanceof String)
+			return new String[] {(String)this.value, };
+		return null;
+	}
+
+	/**
+	 * @return raw data of binary and unknown types
+	 */
+	public byte[] getBytes() {
+		if (this.value instanceof byte[])
+			return (byte[])this.value;
+		return null;
+	}
+
+	/**
+	 * Format the value as lines of text. REG_DWORD is shown signed, as wmic
+	 * always has, and binary data as one run of hex digits. The array is
+	 * the caller's to keep.
+	 */
+	public String[] format() {
+		if (this.value == null)
+			return new String[0];
+		if (this.value instanceof String[])
+			return ((String[])this.value).clone();
+		if (this.value instanceof byte[])
+			return new String[] {toHex((byte[])this.value), };
+		if (this.type == IJIWinReg.REG_DWORD)
+			return new String[] {Integer.toString((int)this.getLong()), };
+		return new String[] {this.value.toString(), };
+	}
+
+	/**
+	 * Format bytes as "0x" followed by two hex digits per byte.
+	 * @param b data
+	 */
+	public static String toHex(byte[] b) {
+		char[] buf = new char[2 + b.length * 2];
+		buf[0] = '0';
+		buf[1] = 'x';
+		for (int i=0; i<b.length; i++) {
+			buf[2 + i*2] = HEX[(b[i] >> 4) & 0xf];
+			buf[3 + i*2] = HEX[b[i] & 0xf];
+		}
+		return new String(buf);
+	}
+
+	/**
+	 * Parse binary data given either as one hex run, as produced by toHex,
+	 * or as one "0x" prefixed byte per value.
+	 * @param values hex strings
+	 * @throws NumberFormatException
+	 */
+	public static byte[] parseHex(String[] values) {
+		if (values.length == 1 && values[0].length() > 4) {
+			String hex = values[0];
+			int start = hex.startsWith("0x") || hex.startsWith("0X") ? 2 : 0;
+			if ((hex.length() - start) % 2 != 0)
+				throw new NumberFormatException("odd number of hex digits: " + hex);
+
+			byte[] b = new byte[(hex.length() - start) / 2];
+			for (int i=0; i<b.length; i++) {
+				int hi = Character.digit(hex.charAt(start + i*2), 16);
+				int lo = Character.digit(hex.charAt(start + i*2 + 1), 16);
+				if (hi < 0 || lo < 0)
+					throw new NumberFormatException("invalid hex digit: " + hex);
+				b[i] = (byte)((hi << 4) | lo);
+			}
+			return b;
+		}
+
+		byte[] b = new byte[values.length];
+		for (int i=0; i<values.length; i++) {
+			String hex = values[i];
+			if (hex.startsWith("0x") || hex.startsWith("0X"))
+				hex = hex.substring(2);
+			b[i] = (byte)(Integer.parseInt(hex, 16));
+		}
+		return b;
+	}
+
+	/**
+	 * Encode a string for winreg_SetValue, which widens each byte to one
+	 * UTF-16 character.
+	 * @param value string to encode
+	 */
+	public static byte[] encodeString(String value) {
+		try {
+			return value.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			// ISO-8859-1 is always supported
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String[] decodeStrings(byte[][] lines) {
+		// The list is normally terminated by a null entry
+		int size = 0;
+		while (size < lines.length && lines[size] != null)
+			size++;
+
+		String[] output = new String[size];
+		for (int i=0; i<size; i++)
+			output[i] = decodeString(lines[i], 0, lines[i].length);
+		return output;
+	}
+
+	private static String decodeString(byte[] b, int offset, int length) {
+		// Drop the terminating null if it was counted in the data
+		while (length > 0 && b[offset + length - 1] == 0)
+			length--;
+		try {
+			return new String(b, offset, length, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			// ISO-8859-1 is always supported
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,27 @@
+/**
+ * Copyright (c) 2010 rPath, Inc.
+ */
+package com.rpath.management.windows;
+
+import org.jinterop.dcom.common.JIException;
+
+/**
+ * Interface for receiving registry values one at a time while a subtree is
+ * enumerated.
+ */
+public interface RegistryEntryHandler {
+	/**
+	 * Column names for writing entries as rows.
+	 */
+	public static final String[] COLUMNS = {"KeyPath", "Name", "Type", "Data"};
+	
+	/**
+	 * Handle a single value.
+	 * @param keyPath path of the key the value is under
+	 * @param name value name, empty for the default value
+	 * @param type registry data type, e.g. IJIWinReg.REG_SZ
+	 * @param data the value formatted as by Registry.getKey, null if it couldn't be read
+	 * @throws JIException
+	 */
+	public void handleEntry(String keyPath, String name, int type, String[] data) throws JIException;
+}
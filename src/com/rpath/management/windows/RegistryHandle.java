@@ -5,9 +5,14 @@
 package com.rpath.management.windows;
 
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.jinterop.dcom.common.IJIAuthInfo;
 import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.common.JISystem;
 import org.jinterop.winreg.IJIWinReg;
 import org.jinterop.winreg.JIPolicyHandle;
 import org.jinterop.winreg.JIWinRegFactory;
@@ -16,11 +21,21 @@ import org.jinterop.winreg.JIWinRegFactory;
  * @author Elliot Peele <elliot@rpath.com>
  *
  * Class for handling a registry connection
+ *
+ * Opened keys are kept in a bounded LRU cache so that repeated access to the
+ * same key doesn't pay for an OpenKey and CloseKey round trip each time.
+ * Handles are closed when they are evicted or when the connection is torn
+ * down.
  */
 public class RegistryHandle {
+	private static final int MAX_KEYS = 32;
+	
 	public IJIWinReg registry = null;
 	private JIPolicyHandle hkey = null;
-	private JIPolicyHandle key = null;
+	private LinkedHashMap<String, JIPolicyHandle> keys = null;
+	
+	private int keysOpened = 0;
+	private int keyHits = 0;
 	
 	/**
 	 * Constructor for registry interactions.
@@ -36,36 +51,121 @@ public class RegistryHandle {
 
 		// Open HKey Local Machine from the registry
 		this.hkey = registry.winreg_OpenHKLM();
+		
+		// Access ordered so that the eldest entry is the least recently used
+		this.keys = new LinkedHashMap<String, JIPolicyHandle>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, JIPolicyHandle> eldest) {
+				if (this.size() <= MAX_KEYS)
+					return false;
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
 	}
 	
 	
 	/**
-	 * Open a specific key if this handle hasn't been used to open a key already.
+	 * Open a key with full access, reusing a cached handle if there is one.
 	 * 
 	 * @param keyPath path to the requested key.
 	 * @throws JIException 
 	 */
 	public JIPolicyHandle openKey(String keyPath) throws JIException {
-		// Close the instances key if it is already open.
-		if (this.key != null) {
-			this.closeKey();
+		return this.openKey(keyPath, IJIWinReg.KEY_ALL_ACCESS);
+	}
+	
+	/**
+	 * Open a key, reusing a cached handle if there is one.
+	 * 
+	 * @param keyPath path to the requested key.
+	 * @param access access mask to open the key with
+	 * @throws JIException 
+	 */
+	public JIPolicyHandle openKey(String keyPath, int access) throws JIException {
+		// Key paths are case insensitive
+		String cacheKey = access + ":" + keyPath.toLowerCase();
+		
+		JIPolicyHandle key = this.keys.get(cacheKey);
+		if (key != null) {
+			this.keyHits++;
+			return key;
 		}
 
 		// Open the requested key from the registry
-		this.key = registry.winreg_OpenKey(this.hkey, keyPath, IJIWinReg.KEY_ALL_ACCESS);
+		key = registry.winreg_OpenKey(this.hkey, keyPath, access);
+		this.keysOpened++;
+		this.keys.put(cacheKey, key);
 
-		return this.key;
+		return key;
 	}
 	
 	/**
-	 * Close the last opened key.
+	 * Open a key without caching the handle. The caller has to close it
+	 * with closeKey.
+	 * 
+	 * @param keyPath path to the requested key.
+	 * @param access access mask to open the key with
+	 * @throws JIException 
+	 */
+	public JIPolicyHandle openUncachedKey(String keyPath, int access) throws JIException {
+		this.keysOpened++;
+		return this.registry.winreg_OpenKey(this.hkey, keyPath, access);
+	}
+	
+	/**
+	 * Close a key opened with openUncachedKey.
 	 * @throws JIException 
 	 */
-	public void closeKey() throws JIException {
-		if (this.key != null) {
-			this.registry.winreg_CloseKey(this.key);
-			this.key = null;
+	public void closeKey(JIPolicyHandle key) throws JIException {
+		this.registry.winreg_CloseKey(key);
+	}
+	
+	/**
+	 * Close any cached handles for a key, e.g. after the key was deleted.
+	 * 
+	 * @param keyPath path to the key
+	 * @return true if a cached handle was dropped
+	 */
+	public boolean forgetKey(String keyPath) {
+		String suffix = ":" + keyPath.toLowerCase();
+		boolean found = false;
+		Iterator<Map.Entry<String, JIPolicyHandle>> it = this.keys.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, JIPolicyHandle> entry = it.next();
+			if (entry.getKey().endsWith(suffix)) {
+				this.closeQuietly(entry.getValue());
+				it.remove();
+				found = true;
+			}
 		}
+		return found;
+	}
+	
+	/**
+	 * Close all cached key handles. Errors are logged, the handles are
+	 * dropped either way.
+	 */
+	public void closeKeys() {
+		ArrayList<JIPolicyHandle> handles = new ArrayList<JIPolicyHandle>(this.keys.values());
+		this.keys.clear();
+		for (JIPolicyHandle key : handles)
+			this.closeQuietly(key);
+	}
+	
+	/**
+	 * @return number of OpenKey calls made
+	 */
+	public int getKeysOpened() {
+		return this.keysOpened;
+	}
+	
+	/**
+	 * @return number of key opens served from the cache
+	 */
+	public int getKeyHits() {
+		return this.keyHits;
 	}
 	
 	/**
@@ -74,14 +174,37 @@ public class RegistryHandle {
 	 */
 	public void closeConnection() throws JIException {
 		// Close connections in the opposite order they were opened.
-		
-		// Make sure the key is closed first.
-		this.closeKey();
-		
-		// Close the hkey.
-		this.registry.winreg_CloseKey(this.hkey);
-		
-		// Close the registry connection
-		this.registry.closeConnection();
+		try {
+			// Make sure the keys are closed first.
+			this.closeKeys();
+			
+			// Close the hkey.
+			this.closeQuietly(this.hkey);
+		} finally {
+			// Close the registry connection, even if the keys couldn't be
+			// closed, so the pipe isn't leaked
+			this.registry.closeConnection();
+		}
+	}
+	
+	/**
+	 * Drop the connection without talking to the server, for use after the
+	 * connection has failed.
+	 */
+	public void abandon() {
+		this.keys.clear();
+		try {
+			this.registry.closeConnection();
+		} catch (JIException e) {
+			JISystem.getLogger().info("error closing registry connection: " + e.getMessage());
+		}
+	}
+	
+	private void closeQuietly(JIPolicyHandle key) {
+		try {
+			this.registry.winreg_CloseKey(key);
+		} catch (JIException e) {
+			JISystem.getLogger().info("error closing registry key: " + e.getMessage());
+		}
 	}
 }
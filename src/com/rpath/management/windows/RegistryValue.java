@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2010 rPath, Inc.
+ */
+package com.rpath.management.windows;
+
+/**
+ * Class for holding the result of reading one registry value as part of a
+ * batch, either the value or the error reading it failed with.
+ */
+public class RegistryValue {
+	/**
+	 * Column names of the row returned by getRecord.
+	 */
+	public static final String[] COLUMNS = {"KeyPath", "Name", "Error", "Data"};
+	
+	private String keyPath;
+	private String name;
+	private String[] data = null;
+	private int errorCode = 0;
+	
+	/**
+	 * Constructor
+	 * @param keyPath path of the key the value is under
+	 * @param name value name
+	 */
+	public RegistryValue(String keyPath, String name) {
+		this.keyPath = keyPath;
+		this.name = name;
+	}
+	
+	public String getKeyPath() {
+		return this.keyPath;
+	}
+	
+	public String getName() {
+		return this.name;
+	}
+	
+	/**
+	 * @return the value formatted as by Registry.getKey, null if reading it failed
+	 */
+	public String[] getData() {
+		return this.data;
+	}
+	
+	/**
+	 * @return the error code reading the value failed with, 0 on success
+	 */
+	public int getErrorCode() {
+		return this.errorCode;
+	}
+	
+	public boolean isError() {
+		return this.errorCode != 0;
+	}
+	
+	/**
+	 * @return the error code formatted as reported by wmic, "0" on success
+	 */
+	public String getError() {
+		if (this.errorCode == 0)
+			return "0";
+		return "0x" + Integer.toHexString(this.errorCode).toUpperCase();
+	}
+	
+	/**
+	 * Get the result as a row with the values in COLUMNS order.
+	 */
+	public Object[] getRecord() {
+		return new Object[] {this.keyPath, this.name, this.getError(),
+			this.data == null ? new String[0] : this.data, };
+	}
+	
+	/**
+	 * Format the result as a tab separated line: key path, name, error and
+	 * each line of the data.
+	 */
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		buf.append(this.keyPath).append('\t').append(this.name).append('\t').append(this.getError());
+		if (this.data != null) {
+			for (String line : this.data)
+				buf.append('\t').append(line);
+		}
+		return buf.toString();
+	}
+	
+	void setData(String[] data) {
+		this.data = data;
+		this.errorCode = 0;
+	}
+	
+	void setError(int errorCode) {
+		this.data = null;
+		this.errorCode = errorCode;
+	}
+}
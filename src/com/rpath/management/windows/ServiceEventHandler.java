@@ -0,0 +1,26 @@
+/**
+ * Copyright (c) 2010 rPath, Inc.
+ */
+package com.rpath.management.windows;
+
+import org.jinterop.dcom.common.JIException;
+
+/**
+ * Interface for receiving service state changes as they happen.
+ */
+public interface ServiceEventHandler {
+	/**
+	 * Column names for writing events as rows.
+	 */
+	public static final String[] COLUMNS = {"Name", "State", "PreviousState"};
+	
+	/**
+	 * Handle a single state change.
+	 * @param name service name
+	 * @param state new state, e.g. Running
+	 * @param previousState state before the change
+	 * @return false to stop watching
+	 * @throws JIException
+	 */
+	public boolean handleEvent(String name, String state, String previousState) throws JIException;
+}
@@ -4,6 +4,16 @@
 package com.rpath.management.windows;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.jinterop.dcom.common.JIException;
 import org.jinterop.dcom.core.JIVariant;
 import org.jinterop.dcom.impls.automation.IJIDispatch;
@@ -15,9 +25,44 @@ import static org.jinterop.dcom.impls.JIObjectFactory.narrowObject;
  * Class for interacting with remote Windows services
  */
 public class Services {
+	/**
+	 * Columns of the records returned by snapshot.
+	 */
+	public static final String[] SNAPSHOT_COLUMNS = {"Name", "State", "StartMode", "ProcessId", "ExitCode"};
+	
+	/**
+	 * Columns of the rows reported for bulk start and stop.
+	 */
+	public static final String[] BULK_COLUMNS = {"Name", "Status"};
+	
+	private static final int SERVICE_NOT_ACTIVE = 6;
+	private static final int PATH_NOT_FOUND = 9;
+	private static final int SERVICE_ALREADY_RUNNING = 10;
+	private static final int DEPENDENCY_FAILURE = 13;
+	private static final int CIRCULAR_DEPENDENCY = 18;
+	
+	// wbemErrNotFound and wbemErrInvalidObjectPath
+	private static final int WBEM_E_NOT_FOUND = 0x80041002;
+	private static final int WBEM_E_INVALID_OBJECT_PATH = 0x8004103A;
+	
+	// Services acted on at the same time
+	private static final int BULK_THREADS = 4;
+	
+	// How long to wait for one level of services to reach the new state
+	// before moving on to the services that depend on them
+	private static final long SETTLE_TIMEOUT = 60000;
+	private static final long SETTLE_INTERVAL = 500;
+	
+	// Seconds between WMI's checks for service changes in event queries
+	private static final int WATCH_INTERVAL = 1;
+	
 	private Session session = null;
 	private Query query = null;
 	
+	// Object paths of services that have already been looked up, by the
+	// name they were requested with.
+	private Hashtable<String, String[]> paths = new Hashtable<String, String[]>();
+	
 	private final StatusCodes status_codes = new StatusCodes(new Object[][] {
 		{0, "Success"},
 		{1, "Not Supported"},
@@ -89,6 +134,354 @@ public class Services {
 		return this.status_codes.reportStatus(this.service(serviceName, "InterrogateService"), false);
 	}
 	
+	/**
+	 * Get the state of many services with one projected query rather than
+	 * a lookup and an InterrogateService call per service.
+	 * 
+	 * @param serviceNames names of the services to include, all services if none are given
+	 * @return records with SNAPSHOT_COLUMNS keyed by service name, services
+	 *         that don't exist are left out
+	 * @throws JIException 
+	 */
+	public LinkedHashMap<String, WbemRecord> snapshot(String... serviceNames) throws JIException {
+		WqlQuery query = new WqlQuery("Win32_Service", SNAPSHOT_COLUMNS);
+		if (serviceNames.length > 0)
+			query.whereIn("Name", serviceNames);
+		
+		LinkedHashMap<String, WbemRecord> services = new LinkedHashMap<String, WbemRecord>();
+		for (WbemRecord record : this.query.select(query))
+			services.put(record.getString(0), record);
+		return services;
+	}
+	
+	/**
+	 * Wait for a service to reach a state. A notification query is set up
+	 * before the current state is checked, so the call returns as soon as
+	 * WMI sees the change without polling the service.
+	 * 
+	 * @param serviceName service name
+	 * @param state state to wait for, e.g. Running or Stopped
+	 * @param timeout milliseconds to wait
+	 * @return true if the service reached the state, false on timeout
+	 * @throws JIException 
+	 * @throws ServiceNotFoundError 
+	 */
+	public boolean awaitState(String serviceName, String state, long timeout) throws JIException, ServiceNotFoundError {
+		long deadline = System.currentTimeMillis() + timeout;
+		RecordDecoder decoder = new RecordDecoder("Name", "State");
+		EventWatcher watcher = this.query.watch(stateChangeQuery(serviceName));
+		try {
+			LinkedHashMap<String, WbemRecord> current = this.snapshot(serviceName);
+			if (current.isEmpty())
+				throw new ServiceNotFoundError(serviceName);
+			if (state.equalsIgnoreCase(current.values().iterator().next().getString(1)))
+				return true;
+			
+			while (true) {
+				IJIDispatch event = watcher.nextEvent(deadline - System.currentTimeMillis());
+				if (event == null)
+					return false;
+				
+				WbemRecord target = decoder.decode(EventWatcher.getInstance(event, "TargetInstance"));
+				if (state.equalsIgnoreCase(target.getString(1)))
+					return true;
+			}
+		} finally {
+			watcher.close();
+		}
+	}
+	
+	/**
+	 * Pass service state changes to a handler as WMI reports them.
+	 * 
+	 * @param serviceNames services to watch, all services if none are given
+	 * @param timeout milliseconds to watch for
+	 * @param handler handler to receive changes, stops the watch by returning false
+	 * @throws JIException 
+	 */
+	public void watch(String[] serviceNames, long timeout, ServiceEventHandler handler) throws JIException {
+		long deadline = System.currentTimeMillis() + timeout;
+		RecordDecoder decoder = new RecordDecoder("Name", "State");
+		EventWatcher watcher = this.query.watch(stateChangeQuery(serviceNames));
+		try {
+			while (true) {
+				IJIDispatch event = watcher.nextEvent(deadline - System.currentTimeMillis());
+				if (event == null)
+					return;
+				
+				WbemRecord target = decoder.decode(EventWatcher.getInstance(event, "TargetInstance"));
+				WbemRecord previous = decoder.decode(EventWatcher.getInstance(event, "PreviousInstance"));
+				if (!handler.handleEvent(target.getString(0), target.getString(1), previous.getString(1)))
+					return;
+			}
+		} finally {
+			watcher.close();
+		}
+	}
+	
+	/**
+	 * Build an event query for state changes of some or all services.
+	 * @param serviceNames service names, all services if none are given
+	 */
+	private static String stateChangeQuery(String... serviceNames) {
+		StringBuilder buf = new StringBuilder();
+		buf.append("SELECT * FROM __InstanceModificationEvent WITHIN ").append(WATCH_INTERVAL);
+		buf.append(" WHERE TargetInstance ISA 'Win32_Service'");
+		buf.append(" AND TargetInstance.State <> PreviousInstance.State");
+		for (int i=0; i<serviceNames.length; i++) {
+			buf.append(i == 0 ? " AND (" : " OR ");
+			buf.append("TargetInstance.Name = ").append(WqlQuery.quote(serviceNames[i]));
+		}
+		if (serviceNames.length > 0)
+			buf.append(")");
+		return buf.toString();
+	}
+	
+	/**
+	 * Start several services, each after the services it depends on.
+	 * 
+	 * @param serviceNames names of the services to start
+	 * @return status of each service keyed by name, in request order
+	 * @throws JIException 
+	 */
+	public LinkedHashMap<String, String> startServices(String... serviceNames) throws JIException {
+		return this.bulk(serviceNames, true);
+	}
+	
+	/**
+	 * Stop several services, each after the services that depend on it.
+	 * 
+	 * @param serviceNames names of the services to stop
+	 * @return status of each service keyed by name, in request order
+	 * @throws JIException 
+	 */
+	public LinkedHashMap<String, String> stopServices(String... serviceNames) throws JIException {
+		return this.bulk(serviceNames, false);
+	}
+	
+	/**
+	 * Start or stop services in dependency order. The dependency graph is
+	 * read once, the services are split into levels that only depend on
+	 * earlier levels, and the services of each level are acted on in
+	 * parallel. Before moving on to the next level the current one is given
+	 * time to finish starting or stopping, since a stop fails while
+	 * dependents are still stopping. Services already in the requested
+	 * state are left alone and count as successful, services whose
+	 * prerequisites failed are skipped.
+	 * 
+	 * @param serviceNames service names, captions are not matched
+	 * @param start true to start, false to stop
+	 * @throws JIException 
+	 */
+	private LinkedHashMap<String, String> bulk(String[] serviceNames, boolean start) throws JIException {
+		LinkedHashMap<String, String> results = new LinkedHashMap<String, String>();
+		if (serviceNames.length == 0)
+			return results;
+		
+		// Look up all of the services at once, by lower case name
+		String target = start ? "Running" : "Stopped";
+		LinkedHashMap<String, String> names = new LinkedHashMap<String, String>();
+		HashSet<String> inState = new HashSet<String>();
+		for (WbemRecord service : this.snapshot(serviceNames).values()) {
+			String name = service.getString(0).toLowerCase();
+			names.put(name, service.getString(0));
+			if (target.equalsIgnoreCase(service.getString(1)))
+				inState.add(name);
+		}
+		
+		HashMap<String, Integer> status = new HashMap<String, Integer>();
+		HashMap<String, HashSet<String>> waitFor = new HashMap<String, HashSet<String>>();
+		for (String name : names.keySet())
+			waitFor.put(name, new HashSet<String>());
+		
+		// Starting waits for antecedents, stopping for dependents
+		for (String[] edge : this.dependencies()) {
+			String antecedent = edge[0].toLowerCase();
+			String dependent = edge[1].toLowerCase();
+			if (!names.containsKey(antecedent) || !names.containsKey(dependent))
+				continue;
+			if (start)
+				waitFor.get(dependent).add(antecedent);
+			else
+				waitFor.get(antecedent).add(dependent);
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(BULK_THREADS, names.size()));
+		try {
+			HashSet<String> done = new HashSet<String>();
+			while (done.size() < names.size()) {
+				// Everything whose prerequisites have all been acted on
+				ArrayList<String> level = new ArrayList<String>();
+				for (String name : names.keySet()) {
+					if (!done.contains(name) && done.containsAll(waitFor.get(name)))
+						level.add(name);
+				}
+				if (level.isEmpty()) {
+					// Whatever is left waits on itself
+					for (String name : names.keySet()) {
+						if (!done.contains(name))
+							status.put(name, CIRCULAR_DEPENDENCY);
+					}
+					break;
+				}
+				
+				ArrayList<String> pending = new ArrayList<String>();
+				ArrayList<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+				for (String name : level) {
+					done.add(name);
+					if (inState.contains(name)) {
+						status.put(name, new Integer(0));
+						continue;
+					}
+					if (this.failed(waitFor.get(name), status)) {
+						status.put(name, DEPENDENCY_FAILURE);
+						continue;
+					}
+					final String serviceName = names.get(name);
+					final String action = start ? "StartService" : "StopService";
+					pending.add(name);
+					futures.add(executor.submit(new Callable<Integer>() {
+						public Integer call() throws Exception {
+							return service(serviceName, action)[0];
+						}
+					}));
+				}
+				
+				for (int i=0; i<pending.size(); i++)
+					status.put(pending.get(i), this.get(futures.get(i)));
+				
+				if (done.size() < names.size())
+					this.settle(pending, names, status, start);
+			}
+		} finally {
+			executor.shutdown();
+		}
+		
+		// Report in request order, services that weren't found included
+		for (String serviceName : serviceNames) {
+			String name = serviceName.toLowerCase();
+			if (!names.containsKey(name))
+				results.put(serviceName, new ServiceNotFoundError(serviceName).getError());
+			else
+				results.put(names.get(name), this.status_codes.get(status.get(name)));
+		}
+		return results;
+	}
+	
+	/**
+	 * Read the service dependency graph.
+	 * 
+	 * @return pairs of antecedent and dependent service names
+	 * @throws JIException 
+	 */
+	private ArrayList<String[]> dependencies() throws JIException {
+		ArrayList<String[]> edges = new ArrayList<String[]>();
+		WqlQuery query = new WqlQuery("Win32_DependentService", "Antecedent", "Dependent");
+		for (WbemRecord record : this.query.select(query)) {
+			String antecedent = nameFromPath(record.getString(0));
+			String dependent = nameFromPath(record.getString(1));
+			if (antecedent != null && dependent != null)
+				edges.add(new String[] {antecedent, dependent, });
+		}
+		return edges;
+	}
+	
+	/**
+	 * Get the service name out of an object path such as
+	 * \\HOST\root\cimv2:Win32_Service.Name="Server".
+	 * 
+	 * @param path object path
+	 * @return the name, null if the path has no Name key
+	 */
+	static String nameFromPath(String path) {
+		if (path == null)
+			return null;
+		int start = path.indexOf("Name=\"");
+		if (start < 0)
+			return null;
+		
+		StringBuilder buf = new StringBuilder();
+		for (int i=start + 6; i<path.length(); i++) {
+			char c = path.charAt(i);
+			if (c == '"')
+				return buf.toString();
+			if (c == '\\' && i + 1 < path.length())
+				c = path.charAt(++i);
+			buf.append(c);
+		}
+		return null;
+	}
+	
+	/**
+	 * Check if any prerequisite of a service failed. A service that was
+	 * already in the requested state counts as done.
+	 */
+	private boolean failed(HashSet<String> prerequisites, HashMap<String, Integer> status) {
+		for (String name : prerequisites) {
+			int rc = status.get(name).intValue();
+			if (rc != 0 && rc != SERVICE_ALREADY_RUNNING && rc != SERVICE_NOT_ACTIVE)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Wait for services that were started or stopped to get there.
+	 */
+	private void settle(ArrayList<String> level, LinkedHashMap<String, String> names, HashMap<String, Integer> status, boolean start) throws JIException {
+		ArrayList<String> waiting = new ArrayList<String>();
+		for (String name : level) {
+			if (status.get(name).intValue() == 0)
+				waiting.add(names.get(name));
+		}
+		
+		String target = start ? "Running" : "Stopped";
+		long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT;
+		while (!waiting.isEmpty() && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(SETTLE_INTERVAL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			
+			LinkedHashMap<String, WbemRecord> states = this.snapshot(waiting.toArray(new String[waiting.size()]));
+			ArrayList<String> still = new ArrayList<String>();
+			for (String name : waiting) {
+				WbemRecord state = states.get(name);
+				if (state != null && !target.equalsIgnoreCase(state.getString(1)))
+					still.add(name);
+			}
+			waiting = still;
+		}
+	}
+	
+	/**
+	 * Check if a Get by object path failed only because there is no such
+	 * service, rather than because of access or connection problems.
+	 */
+	private static boolean isNotFound(JIException e) {
+		int code = Session.wmiErrorCode(e);
+		return code == WBEM_E_NOT_FOUND || code == WBEM_E_INVALID_OBJECT_PATH;
+	}
+	
+	private Integer get(Future<Integer> future) throws JIException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JIException(-1, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof JIException)
+				throw (JIException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			// The service was removed since the snapshot
+			return new Integer(PATH_NOT_FOUND);
+		}
+	}
+	
 	/**
 	 * Perform an action on a set of services.
 	 * 
@@ -98,27 +491,75 @@ public class Services {
 	 * @throws ServiceNotFoundError 
 	 */
 	private Integer[] service(String serviceName, String action) throws JIException, ServiceNotFoundError {
-		// Query the machine for instances of the given service name
-		String queryStr = "SELECT * FROM Win32_Service WHERE Caption='" + serviceName + "'";
-		ArrayList<JIVariant> queryList = this.query.query(queryStr);
+		IJIDispatch[] services = this.resolve(serviceName);
+		
+		// Create an array for storing status information
+		Integer[] status = new Integer[services.length];
+		
+		for(int i=0; i<services.length;i++) {
+			// Invoke the specified action, reusing the dispatch ID of the method
+			status[i] = this.session.invokeMethod("Win32_Service", services[i], action, null)[0].getObjectAsInt();
+		}
+		return status;
+	}
+	
+	/**
+	 * Find the service instances for a name. Resolved object paths are cached
+	 * so repeated actions on the same service go straight to Get.
+	 * 
+	 * @param serviceName service name or caption
+	 * @throws JIException
+	 * @throws ServiceNotFoundError
+	 */
+	private IJIDispatch[] resolve(String serviceName) throws JIException, ServiceNotFoundError {
+		String[] paths = this.paths.get(serviceName);
+		if (paths != null) {
+			try {
+				IJIDispatch[] services = new IJIDispatch[paths.length];
+				for (int i=0; i<paths.length; i++)
+					services[i] = this.session.getObject(paths[i]);
+				return services;
+			} catch (JIException e) {
+				if (!isNotFound(e))
+					throw e;
+				// The service may have been removed or renamed, look it up again
+				this.paths.remove(serviceName);
+			}
+		}
+		
+		// Fast path: the name is the service's key
+		String path = Session.objectPath("Win32_Service", "Name", serviceName);
+		try {
+			IJIDispatch service = this.session.getObject(path);
+			this.paths.put(serviceName, new String[] {path, });
+			return new IJIDispatch[] {service, };
+		} catch (JIException e) {
+			// Not a key, fall back to matching the caption
+			if (!isNotFound(e))
+				throw e;
+		}
+		
+		// Query the machine for instances of the given service caption. The
+		// key property is selected so the partial instances can still have
+		// methods invoked on them.
+		WqlQuery query = new WqlQuery("Win32_Service", "Name");
+		query.where("Caption", serviceName);
+		RecordDecoder decoder = query.getDecoder();
+		ArrayList<JIVariant> queryList = this.query.query(query.toString());
 		
 		if (queryList.size() == 0) {
 			throw new ServiceNotFoundError(serviceName);
 		}
 		
-		// Create an array for storing status information
-		Integer[] status = new Integer[queryList.size()];
-		
-		for(int i=0; i<queryList.size();i++) {
-
-			JIVariant service = queryList.get(i);
-			
+		IJIDispatch[] services = new IJIDispatch[queryList.size()];
+		paths = new String[queryList.size()];
+		for (int i=0; i<queryList.size(); i++) {
 			// Get a dispatcher to control the specific service
-			IJIDispatch dispatch = (IJIDispatch)narrowObject(service.getObjectAsComObject());
-			
-			// Invoke the specified action
-			status[i] = dispatch.callMethodA(action).getObjectAsInt();
+			services[i] = (IJIDispatch)narrowObject(queryList.get(i).getObjectAsComObject());
+			paths[i] = Session.objectPath("Win32_Service", "Name", decoder.decode(services[i]).getString(0));
 		}
-		return status;
+		this.paths.put(serviceName, paths);
+		
+		return services;
 	}
 }
\ No newline at end of file
@@ -3,10 +3,14 @@
  */
 package com.rpath.management.windows;
 
+import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.HashMap;
 
 import org.jinterop.dcom.common.IJIAuthInfo;
+import org.jinterop.dcom.common.JIErrorCodes;
 import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.common.JISystem;
 import org.jinterop.dcom.core.IJIComObject;
 import org.jinterop.dcom.core.JIComServer;
 import org.jinterop.dcom.core.JIProgId;
@@ -15,6 +19,8 @@ import org.jinterop.dcom.core.JIString;
 import org.jinterop.dcom.core.JIVariant;
 import org.jinterop.dcom.impls.JIObjectFactory;
 import org.jinterop.dcom.impls.automation.IJIDispatch;
+import org.jinterop.dcom.impls.automation.JIAutomationException;
+import org.jinterop.dcom.impls.automation.JIExcepInfo;
 
 /**
  * @author Elliot Peele <elliot@rpath.com>
@@ -23,14 +29,34 @@ import org.jinterop.dcom.impls.automation.IJIDispatch;
  */
 public class Session {
 	private String address = null;
+	private IJIAuthInfo authInfo = null;
 	private JISession session = null;
 	private IJIDispatch dispatch = null;
 	private JIComServer comServer = null;
 	private IJIComObject comObject = null;
 
+	// SWbemServices instance returned by ConnectServer, reused across calls.
+	private IJIDispatch services = null;
+	private long lastUsed = 0;
+
+	// Class objects and method dispatch IDs, by class name and by
+	// "class.method". Only valid for the current SWbemServices connection.
+	private HashMap<String, IJIDispatch> classes = new HashMap<String, IJIDispatch>();
+	private HashMap<String, Integer> dispIds = new HashMap<String, Integer>();
+
+	// Counters for connection reuse.
+	private int connects = 0;
+	private int connectsAvoided = 0;
+	private int reconnects = 0;
+	private int classHits = 0;
+
 	// Magic WMI UUID to connect to.
 	private final String INTERFACE_UUID = "76A6415B-CB41-11d1-8B02-00600806D9B6";
 	
+	// A cached connection that has been idle longer than this is verified
+	// with a cheap property read before it is handed out again.
+	private final long VERIFY_AFTER = 30 * 1000;
+
 	/**
 	 * Constructor for the session class
 	 * 
@@ -41,9 +67,18 @@ public class Session {
 	 */
 	public Session(String address, IJIAuthInfo authInfo) throws UnknownHostException, JIException {
 		this.address = address;
+		this.authInfo = authInfo;
+		this.connectLocator();
+	}
 		
+	/**
+	 * Create the DCOM session and the SWbemLocator dispatch interface.
+	 * @throws UnknownHostException
+	 * @throws JIException
+	 */
+	private void connectLocator() throws UnknownHostException, JIException {
 		// The session is used for everything except talking to the registry
-		this.session = JISession.createSession(authInfo);
+		this.session = JISession.createSession(this.authInfo);
 		this.session.useSessionSecurity(true);
 		this.session.setGlobalSocketTimeout(5000);
 		
@@ -59,11 +94,201 @@ public class Session {
 	}
 	
 	/**
-	 * Get a dispatcher to work with
+	 * Get a dispatcher to work with. The SWbemServices connection is cached
+	 * and only re-established after it has been invalidated.
 	 * @return com object dispatcher
 	 * @throws JIException
 	 */
-	public IJIDispatch getDispatch() throws JIException {
+	public synchronized IJIDispatch getDispatch() throws JIException {
+		if (this.services != null && this.verify()) {
+			this.connectsAvoided++;
+			this.lastUsed = System.currentTimeMillis();
+			return this.services;
+		}
+
+		this.dropClasses();
+		try {
+			this.services = this.connectServer();
+		} catch (JIException e) {
+			if (!this.isDisconnect(e))
+				throw e;
+
+			// The locator itself is gone, rebuild the DCOM session.
+			this.reconnectLocator(e);
+			this.services = this.connectServer();
+		}
+		this.lastUsed = System.currentTimeMillis();
+		return this.services;
+	}
+
+	/**
+	 * Fetch a single WMI object or class by its object path.
+	 * @param path object path, e.g. Win32_Service.Name="Spooler"
+	 * @return dispatch interface of the object
+	 * @throws JIException
+	 */
+	public IJIDispatch getObject(String path) throws JIException {
+		try {
+			return this.get(path);
+		} catch (JIException e) {
+			// Retry once on a fresh connection if the cached one went away
+			if (!this.shouldRetry(e))
+				throw e;
+			return this.get(path);
+		}
+	}
+
+	private IJIDispatch get(String path) throws JIException {
+		Object[] params = new Object[] {
+			new JIString(path),
+			new Integer(0),
+			JIVariant.OPTIONAL_PARAM(),
+		};
+
+		JIVariant[] results = this.getDispatch().callMethodA("Get", params);
+		return (IJIDispatch)JIObjectFactory.narrowObject(results[0].getObjectAsComObject());
+	}
+
+	/**
+	 * Get a class object, fetching it only the first time it is used on the
+	 * current connection.
+	 * @param className WMI class name
+	 * @return dispatch interface of the class
+	 * @throws JIException
+	 */
+	public IJIDispatch getClassObject(String className) throws JIException {
+		synchronized (this) {
+			// Checks a connection that has been idle, and drops the cached
+			// classes if it had to reconnect
+			this.getDispatch();
+			IJIDispatch object = this.classes.get(className);
+			if (object != null) {
+				this.classHits++;
+				return object;
+			}
+		}
+
+		IJIDispatch object = this.getObject(className);
+		synchronized (this) {
+			this.classes.put(className, object);
+		}
+		return object;
+	}
+
+	/**
+	 * Call a static method, such as Win32_Process.Create, on a cached class
+	 * object. Only fetching the class object is retried on a fresh
+	 * connection; the method may have run even if its reply was lost, so it
+	 * is never sent twice.
+	 * @param className WMI class name
+	 * @param method method name
+	 * @param args method parameters
+	 * @return results of the call, the return value first
+	 * @throws JIException
+	 */
+	public JIVariant[] invokeStatic(String className, String method, Object[] args) throws JIException {
+		IJIDispatch object = null;
+		try {
+			object = this.getClassObject(className);
+		} catch (JIException e) {
+			// Retry once on a fresh connection if the cached one went away
+			if (!this.shouldRetry(e))
+				throw e;
+			object = this.getClassObject(className);
+		}
+
+		try {
+			return this.invokeMethod(className, object, method, args);
+		} catch (JIException e) {
+			// Drop a lost connection so the next call reconnects
+			if (this.isDisconnect(e))
+				this.invalidate();
+			throw e;
+		}
+	}
+
+	/**
+	 * Call a method using the dispatch ID cached for its class, which saves
+	 * the GetIDsOfNames round trip j-interop makes for each new object.
+	 * @param className WMI class of the object
+	 * @param object class object or instance
+	 * @param method method name
+	 * @param args method parameters, null for none
+	 * @return results of the call, the return value first
+	 * @throws JIException
+	 */
+	public JIVariant[] invokeMethod(String className, IJIDispatch object, String method, Object[] args) throws JIException {
+		String key = className + "." + method;
+		Integer dispId = null;
+		synchronized (this) {
+			dispId = this.dispIds.get(key);
+		}
+
+		if (dispId == null) {
+			dispId = new Integer(object.getIDsOfNames(method));
+			synchronized (this) {
+				this.dispIds.put(key, dispId);
+			}
+		}
+
+		try {
+			if (args == null)
+				return new JIVariant[] {object.callMethodA(dispId.intValue()), };
+			return object.callMethodA(dispId.intValue(), args);
+		} catch (JIException e) {
+			int code = e.getErrorCode();
+			if (code != JIErrorCodes.DISP_E_MEMBERNOTFOUND && code != JIErrorCodes.DISP_E_UNKNOWNNAME)
+				throw e;
+
+			// The ID doesn't hold for this object, go by name
+			synchronized (this) {
+				this.dispIds.remove(key);
+			}
+			if (args == null)
+				return new JIVariant[] {object.callMethodA(method), };
+			return object.callMethodA(method, args);
+		}
+	}
+
+	/**
+	 * Get the WMI status of a failed call. SWbemServices errors come back
+	 * as DISP_E_EXCEPTION with the WMI scode in the exception info.
+	 * @param e exception thrown by a DCOM call
+	 * @return the WMI scode, or the DCOM error code if there is none
+	 */
+	public static int wmiErrorCode(JIException e) {
+		if (e instanceof JIAutomationException) {
+			JIExcepInfo info = ((JIAutomationException)e).getExcepInfo();
+			if (info != null && info.getErrorCode() != 0)
+				return info.getErrorCode();
+		}
+		return e.getErrorCode();
+	}
+
+	/**
+	 * Build an object path for an instance with a single string key.
+	 * @param className WMI class name
+	 * @param key name of the key property
+	 * @param value value of the key property
+	 */
+	public static String objectPath(String className, String key, String value) {
+		StringBuilder buf = new StringBuilder(className.length() + key.length() + value.length() + 4);
+		buf.append(className).append('.').append(key).append("=\"");
+		for (int i=0; i<value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"')
+				buf.append('\\');
+			buf.append(c);
+		}
+		buf.append('"');
+		return buf.toString();
+	}
+
+	/**
+	 * Call ConnectServer on the locator.
+	 * @throws JIException
+	 */
+	private IJIDispatch connectServer() throws JIException {
 		Object[] params = new Object[] {
 			new JIString(this.address),
 			JIVariant.OPTIONAL_PARAM(),
@@ -76,14 +301,130 @@ public class Session {
 		};
 		
 		JIVariant results[] = this.dispatch.callMethodA("ConnectServer", params);
+		this.connects++;
 		return (IJIDispatch)JIObjectFactory.narrowObject((results[0]).getObjectAsComObject());
 	}
 	
+	/**
+	 * Tear down and recreate the DCOM session after a disconnect.
+	 * @param cause the exception that triggered the reconnect
+	 * @throws JIException
+	 */
+	private void reconnectLocator(JIException cause) throws JIException {
+		try {
+			JISession.destroySession(this.session);
+		} catch (JIException e) {
+			// The session is already broken, nothing left to clean up.
+		}
+
+		try {
+			this.connectLocator();
+		} catch (UnknownHostException e) {
+			throw new JIException(cause.getErrorCode(), e);
+		}
+		this.reconnects++;
+	}
+
+	/**
+	 * Check that the cached connection is still usable. Connections used
+	 * recently are trusted, older ones are verified with a single property
+	 * read.
+	 */
+	private boolean verify() {
+		if (System.currentTimeMillis() - this.lastUsed < this.VERIFY_AFTER)
+			return true;
+
+		try {
+			this.services.get("Security_");
+			return true;
+		} catch (JIException e) {
+			this.services = null;
+			return false;
+		}
+	}
+
+	/**
+	 * Drop the cached connection so that the next call to getDispatch
+	 * reconnects.
+	 */
+	public synchronized void invalidate() {
+		this.services = null;
+		this.dropClasses();
+	}
+
+	private synchronized void dropClasses() {
+		this.classes.clear();
+		this.dispIds.clear();
+	}
+
+	/**
+	 * Check if an exception means that the connection to the remote machine
+	 * has been lost and should be re-established.
+	 * @param e exception thrown by a DCOM call
+	 */
+	public boolean isDisconnect(JIException e) {
+		int code = e.getErrorCode();
+		if (code == JIErrorCodes.RPC_E_DISCONNECTED
+				|| code == JIErrorCodes.RPC_SERVER_UNAVAILABLE
+				|| code == JIErrorCodes.RPC_E_INVALID_OXID
+				|| code == JIErrorCodes.RPC_E_INVALID_IPID
+				|| code == JIErrorCodes.RPC_E_SYS_CALL_FAILED)
+			return true;
+		return e.getCause() instanceof IOException;
+	}
+
+	/**
+	 * Handle an exception from a call made with a cached dispatcher. If the
+	 * connection was lost it is invalidated so the caller can retry.
+	 * @param e exception thrown by a DCOM call
+	 * @return true if the caller should retry the operation
+	 */
+	public boolean shouldRetry(JIException e) {
+		if (!this.isDisconnect(e))
+			return false;
+		this.invalidate();
+		return true;
+	}
+
+	/**
+	 * @return number of ConnectServer calls made
+	 */
+	public int getConnectCount() {
+		return this.connects;
+	}
+
+	/**
+	 * @return number of ConnectServer calls avoided by reusing the connection
+	 */
+	public int getConnectsAvoided() {
+		return this.connectsAvoided;
+	}
+
+	/**
+	 * @return number of class object fetches avoided by the class cache
+	 */
+	public synchronized int getClassHits() {
+		return this.classHits;
+	}
+
+	/**
+	 * @return number of times the DCOM session was rebuilt
+	 */
+	public int getReconnectCount() {
+		return this.reconnects;
+	}
+
 	/**
 	 * Close the WMI session.
 	 * @throws JIException
 	 */
 	public void closeConnection() throws JIException {
+		JISystem.getLogger().info(this.address + ": " + this.connects + " WMI connects, "
+				+ this.connectsAvoided + " avoided, " + this.reconnects + " reconnects, "
+				+ this.classHits + " class fetches avoided");
+
+		this.services = null;
+		this.dropClasses();
 		JISession.destroySession(this.session);
 	}
 }
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2010 rPath, Inc.
+ */
+package com.rpath.management.windows;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jinterop.dcom.common.JIException;
+
+/**
+ * Class for listing installed software from the registry.
+ *
+ * Reads the Uninstall keys that Add/Remove Programs uses rather than
+ * querying Win32_Product, which is slow and makes the MSI service run a
+ * consistency check of every product. Reads go through the system's
+ * Registry, which spreads them over its pool of connections.
+ */
+public class Software {
+	/**
+	 * Columns of the records returned by list.
+	 */
+	public static final String[] COLUMNS = {"DisplayName", "DisplayVersion", "Publisher", "InstallDate", "KeyPath"};
+	
+	// Values read from each product key, the COLUMNS before KeyPath
+	private static final String[] VALUES = {"DisplayName", "DisplayVersion", "Publisher", "InstallDate"};
+	
+	private static final String[] HIVES = {
+		"SOFTWARE\\Microsoft\\Windows\\CurrentVersion\\Uninstall",
+		"SOFTWARE\\Wow6432Node\\Microsoft\\Windows\\CurrentVersion\\Uninstall",
+	};
+	
+	private static final int ERROR_FILE_NOT_FOUND = 2;
+	
+	private Registry registry = null;
+	
+	/**
+	 * Constructor
+	 * @param registry registry connection of the system to list
+	 */
+	public Software(Registry registry) {
+		this.registry = registry;
+	}
+	
+	/**
+	 * List installed software. Entries without a DisplayName aren't shown by
+	 * Windows either and are skipped.
+	 * @return one record per product with the values in COLUMNS order
+	 * @throws UnknownHostException
+	 * @throws JIException
+	 */
+	public ArrayList<WbemRecord> list() throws UnknownHostException, JIException {
+		ArrayList<WbemRecord> records = new ArrayList<WbemRecord>();
+		for (String hive : HIVES) {
+			LinkedHashMap<String, RegistryData[]> products;
+			try {
+				products = this.registry.readSubkeys(hive, VALUES);
+			} catch (JIException e) {
+				// There is no Wow6432Node on 32 bit systems
+				if (e.getErrorCode() == ERROR_FILE_NOT_FOUND)
+					continue;
+				throw e;
+			}
+			
+			for (Map.Entry<String, RegistryData[]> product : products.entrySet()) {
+				WbemRecord record = new WbemRecord(COLUMNS);
+				RegistryData[] values = product.getValue();
+				for (int i=0; i<values.length; i++) {
+					if (values[i] == null)
+						continue;
+					String[] data = values[i].format();
+					if (data.length > 0)
+						record.set(i, data[0]);
+				}
+				
+				if (record.isNull(0))
+					continue;
+				record.set(COLUMNS.length - 1, product.getKey());
+				records.add(record);
+			}
+		}
+		return records;
+	}
+}
@@ -5,7 +5,10 @@ package com.rpath.management.windows;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
+import java.util.regex.Pattern;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -16,7 +19,11 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.JIVariant;
+
 import com.rpath.management.windows.streaming.CommandProcessor;
+import com.rpath.management.windows.streaming.JsonResponseWriter;
+import com.rpath.management.windows.streaming.ResponseWriter;
 
 /**
  * @author Elliot Peele <elliot@rpath.com>
@@ -26,6 +33,11 @@ import com.rpath.management.windows.streaming.CommandProcessor;
 public class WMIClientCmd {
 	private final static String usage = "wmiclient [options] <action>";
 
+	private static final int WAIT_TIMEOUT = 0x102;
+
+	// Structured output for --format jsonl, null for plain text.
+	private static ResponseWriter output = null;
+
 	/**
 	 * Main method
 	 * 
@@ -38,6 +50,7 @@ public class WMIClientCmd {
 		String user = cmdline.getOptionValue("user");
 		String domain = cmdline.getOptionValue("domain");
 		String password = cmdline.getOptionValue("password");
+		String format = cmdline.getOptionValue("format", "text");
 
 		String[] remaining = cmdline.getArgs();
 		
@@ -67,6 +80,7 @@ public class WMIClientCmd {
 		 */
 		if (cmdline.hasOption("interactive")) {
 			CommandProcessor processor = new CommandProcessor(system, System.in, System.out, System.err);
+			processor.setFormat(format);
 			
 			try {
 				system = new ManagedSystem(host, domain, user, password);
@@ -94,8 +108,13 @@ public class WMIClientCmd {
 		/*
 		 * Handling for non interactive commands.
 		 */
+		if (format.equals("jsonl"))
+			output = new JsonResponseWriter(System.out, null);
+		
 		try {
 			system = new ManagedSystem(host, domain, user, password);
+			if (output != null)
+				output.startOutput(0);
 
 			if (remaining[0].equals("registry")) {
 				registryCmd(system, Utils.slice(remaining, 1));
@@ -109,18 +128,28 @@ public class WMIClientCmd {
 				printUsage("Sub command not found: " + remaining[0]);
 			}
 		} catch (UnknownHostException e) {
-			System.out.println(e.getMessage());
+			if (output != null)
+				output.reportError("unknown host " + host);
+			else
+				System.out.println(e.getMessage());
 			e.printStackTrace();
 			System.exit(1);
 		} catch (JIException e) {
-			System.out.println(e.getMessage());
+			if (output != null)
+				output.reportError("0x" + Integer.toHexString(e.getErrorCode()).toUpperCase());
+			else
+				System.out.println(e.getMessage());
 			e.printStackTrace();
 			System.exit(e.getErrorCode());
 		} catch (Exception e) {
+			if (output != null)
+				output.reportError("1");
 			e.printStackTrace();
 			System.exit(1);
 		}
 		
+		if (output != null)
+			output.endOutput();
 		System.exit(0);
 	}
 
@@ -140,6 +169,10 @@ public class WMIClientCmd {
 			printUsage("Command line parsing failed: " + exp.getMessage());
 		}
 		
+		String format = cmdline.getOptionValue("format", "text");
+		if (!format.equals("text") && !format.equals("jsonl"))
+			printUsage("Unknown output format: " + format);
+		
 		if (cmdline.hasOption("help")) {
 			printUsage(0);
 		}
@@ -158,6 +191,7 @@ public class WMIClientCmd {
 		Option verbose = OptionBuilder.withLongOpt("verbose").withDescription("be more verbose").create();
 		Option debug = OptionBuilder.withLongOpt("debug").withDescription("print debugging information").create();
 		Option interactive = OptionBuilder.withLongOpt("interactive").withDescription("run in interactive mode").create();
+		Option format = OptionBuilder.withLongOpt("format").withArgName("text|jsonl").hasArg().withDescription("output format, text by default").create();
 		
 		Option host = OptionBuilder.withLongOpt("host").withArgName("hostname or IP").hasArg().withDescription("hostname or IP address to connect to").isRequired().create();
 		Option domain = OptionBuilder.withLongOpt("domain").withArgName("authentication domain").hasArg().withDescription("authentication domain").isRequired().create();
@@ -168,6 +202,7 @@ public class WMIClientCmd {
 		options.addOption(verbose);
 		options.addOption(debug);
 		options.addOption(interactive);
+		options.addOption(format);
 		options.addOption(host);
 		options.addOption(domain);
 		options.addOption(user);
@@ -196,16 +231,28 @@ public class WMIClientCmd {
 		System.out.println();
 		System.out.println("Actions:");
 		System.out.println("    registry getkey <keyPath> <key>");
+		System.out.println("    registry getkeys <keyPath> <key> [<keyPath> <key> ...]");
+		System.out.println("    registry walk <keyPath> [<maxDepth> [<include> [<exclude>]]]");
 		System.out.println("    registry setkey <keyPath> <key> <value>");
+		System.out.println("    registry setkeys <keyPath> [<type>] <key> <value> [<key> <value> ...]");
 		System.out.println("    registry createkey <keyPath> <key>");
 		System.out.println("    service start <serviceName>");
 		System.out.println("    service stop <serviceName>");
 		System.out.println("    service getstatus <servicename>");
+		System.out.println("    service await <serviceName> <state> <seconds>");
+		System.out.println("    service watch <seconds> [<serviceName> ...]");
+		System.out.println("    service startall <serviceName> [<serviceName> ...]");
+		System.out.println("    service stopall <serviceName> [<serviceName> ...]");
+		System.out.println("    service snapshot [<serviceName> ...]");
 		System.out.println("    process create <command>");
 		System.out.println("    process kill <pid>");
 		System.out.println("    process status <pid>");
+		System.out.println("    process run <seconds> <command>");
+		System.out.println("    process wait <pid> <seconds>");
 		System.out.println("    query network");
 		System.out.println("    query uuid");
+		System.out.println("    query software");
+		System.out.println("    query wql <query> <property> [<property> ...]");
 		
 		if (msg != null) {
 			System.out.println();
@@ -226,7 +273,7 @@ public class WMIClientCmd {
 	 */
 	private static void registryCmd(ManagedSystem system, String[] args) throws UnknownHostException, JIException {
 		if (args.length == 0)
-			printUsage("registry <getkey|setkey|createkey>");
+			printUsage("registry <getkey|getkeys|walk|setkey|setkeys|createkey>");
 		
 		// Parse registry command line
 		String[] options = null;
@@ -235,30 +282,90 @@ public class WMIClientCmd {
 			options = Utils.slice(args, 1);
 			if (options.length != 2)
 				printUsage("registry getkey <keyPath> <key>");
+		} else if (action.toLowerCase().equals("getkeys")) {
+			options = Utils.slice(args, 1);
+			if (options.length < 2 || options.length % 2 != 0)
+				printUsage("registry getkeys <keyPath> <key> [<keyPath> <key> ...]");
+		} else if (action.toLowerCase().equals("walk")) {
+			options = Utils.slice(args, 1);
+			if (options.length < 1 || options.length > 4)
+				printUsage("registry walk <keyPath> [<maxDepth> [<include> [<exclude>]]]");
 		} else if (action.toLowerCase().equals("setkey")) {
 			options = Utils.slice(args, 1);
 			if (options.length < 3)
 				printUsage("registry setkey <keyPath> <key> <value>");
+		} else if (action.toLowerCase().equals("setkeys")) {
+			options = Utils.slice(args, 1);
+			if (options.length < 3)
+				printUsage("registry setkeys <keyPath> [<type>] <key> <value> [<key> <value> ...]");
 		} else if (action.toLowerCase().equals("createkey")) {
 			options = Utils.slice(args, 1);
 			if (options.length != 2)
 				printUsage("registry createkey <keyPath> <key>");
 		} else {
-			printUsage("registry <getkey|setkey|createkey>");
+			printUsage("registry <getkey|getkeys|walk|setkey|setkeys|createkey>");
 		}
 
 		// Execute registry command
 		if (action.equals("getkey")) {
 			String[] data = system.registry.getKey(options[0], options[1]);
 			for (int i=0; i<data.length; i++)
-				System.out.println(data[i]);
+				printLine(data[i]);
+		} else if (action.equals("getkeys")) {
+			String[][] items = new String[options.length / 2][];
+			for (int i=0; i<items.length; i++)
+				items[i] = new String[] {options[i*2], options[i*2 + 1], };
+			for (RegistryValue value : system.registry.getKeys(items).values()) {
+				if (output != null)
+					output.writeRecord(RegistryValue.COLUMNS, value.getRecord());
+				else
+					System.out.println(value);
+			}
+		} else if (action.equals("walk")) {
+			int maxDepth = options.length > 1 ? Integer.parseInt(options[1]) : -1;
+			Pattern include = options.length > 2 && options[2].length() > 0 ? Pattern.compile(options[2], Pattern.CASE_INSENSITIVE) : null;
+			Pattern exclude = options.length > 3 && options[3].length() > 0 ? Pattern.compile(options[3], Pattern.CASE_INSENSITIVE) : null;
+			system.registry.walk(options[0], maxDepth, include, exclude, new RegistryEntryHandler() {
+				public void handleEntry(String keyPath, String name, int type, String[] data) {
+					if (output != null) {
+						output.writeRecord(RegistryEntryHandler.COLUMNS,
+								new Object[] {keyPath, name, Registry.typeName(type), data, });
+						return;
+					}
+					System.out.print(keyPath + "\t" + name + "\t" + Registry.typeName(type));
+					if (data != null) {
+						for (String line : data)
+							System.out.print("\t" + line);
+					}
+					System.out.println();
+				}
+			});
 		} else if (action.equals("setkey")) {
 			String[] values = Utils.slice(options, 2);
-			if (system.registry.types.contains(values[0])) {
+			if (system.registry.types.containsKey(values[0])) {
 				system.registry.setKey(options[0], options[1], Utils.slice(options, 3), values[0]);
 			} else {
 				system.registry.setKey(options[0], options[1], values);
 			}
+		} else if (action.equals("setkeys")) {
+			String[] pairs = Utils.slice(options, 1);
+			Integer dtype = null;
+			if (pairs.length % 2 == 1 && system.registry.types.containsKey(pairs[0])) {
+				dtype = (Integer)system.registry.types.get(pairs[0]);
+				pairs = Utils.slice(pairs, 1);
+			}
+			if (pairs.length % 2 != 0)
+				printUsage("registry setkeys <keyPath> [<type>] <key> <value> [<key> <value> ...]");
+			
+			LinkedHashMap<String, String[]> values = new LinkedHashMap<String, String[]>();
+			for (int i=0; i<pairs.length; i+=2)
+				values.put(pairs[i], new String[] {pairs[i+1], });
+			for (RegistryValue value : system.registry.setKeys(options[0], values, dtype).values()) {
+				if (output != null)
+					output.writeRecord(RegistryValue.COLUMNS, value.getRecord());
+				else
+					System.out.println(value);
+			}
 		} else if (action.equals("createkey")) {
 			system.registry.createKey(options[0], options[1]);
 		}
@@ -280,6 +387,20 @@ public class WMIClientCmd {
 			options = Utils.slice(args, 1);
 			if (options.length != 1)
 				printUsage("service <start|stop|getstatus> <serviceName>");
+		} else if (action.equals("snapshot")) {
+			options = Utils.slice(args, 1);
+		} else if (action.equals("await")) {
+			options = Utils.slice(args, 1);
+			if (options.length != 3)
+				printUsage("service await <serviceName> <state> <seconds>");
+		} else if (action.equals("watch")) {
+			options = Utils.slice(args, 1);
+			if (options.length < 1)
+				printUsage("service watch <seconds> [<serviceName> ...]");
+		} else if (action.equals("startall") || action.equals("stopall")) {
+			options = Utils.slice(args, 1);
+			if (options.length == 0)
+				printUsage("service <startall|stopall> <serviceName> [<serviceName> ...]");
 		} else {
 			printUsage("service <start|stop|getstatus> <serviceName>");
 		}
@@ -292,9 +413,51 @@ public class WMIClientCmd {
 			status = system.services.stopService(options[0]);
 		} else if (action.equals("getstatus")) {
 			status = system.services.getStatus(options[0]);
+		} else if (action.equals("await")) {
+			long timeout = (long)(Double.parseDouble(options[2]) * 1000);
+			if (!system.services.awaitState(options[0], options[1], timeout))
+				exitTimedOut("timed out waiting for " + options[0] + " to reach " + options[1]);
+			printLine(options[1]);
+		} else if (action.equals("watch")) {
+			long timeout = (long)(Double.parseDouble(options[0]) * 1000);
+			system.services.watch(Utils.slice(options, 1), timeout, new ServiceEventHandler() {
+				public boolean handleEvent(String name, String state, String previousState) {
+					if (output != null)
+						output.writeRecord(ServiceEventHandler.COLUMNS, new Object[] {name, state, previousState, });
+					else
+						System.out.println(name + "\t" + state + "\t" + previousState);
+					return true;
+				}
+			});
+		} else if (action.equals("startall") || action.equals("stopall")) {
+			LinkedHashMap<String, String> results = action.equals("startall") ?
+					system.services.startServices(options) : system.services.stopServices(options);
+			for (Map.Entry<String, String> result : results.entrySet()) {
+				if (output != null)
+					output.writeRecord(Services.BULK_COLUMNS, new Object[] {result.getKey(), result.getValue(), });
+				else
+					System.out.println(result.getKey() + "\t" + result.getValue());
+			}
+		} else if (action.equals("snapshot")) {
+			for (WbemRecord service : system.services.snapshot(options).values()) {
+				Object[] values = new Object[Services.SNAPSHOT_COLUMNS.length];
+				for (int i=0; i<values.length; i++)
+					values[i] = service.get(i);
+				if (output != null) {
+					output.writeRecord(Services.SNAPSHOT_COLUMNS, values);
+					continue;
+				}
+				for (int i=0; i<values.length; i++) {
+					if (i > 0)
+						System.out.print("\t");
+					if (!service.isNull(i))
+						System.out.print(service.getString(i));
+				}
+				System.out.println();
+			}
 		}
 		
-		Utils.displayStringArray(status, System.out);
+		printLines(status);
 	}
 
 	/**
@@ -303,7 +466,7 @@ public class WMIClientCmd {
 	 */
 	private static void processCmd(ManagedSystem system, String[] args) throws JIException {
 		if (args.length == 0)
-			printUsage("process <create|kill|status>");
+			printUsage("process <create|run|wait|kill|status>");
 		
 		// Parse process command line
 		String[] options = Utils.slice(args, 1);
@@ -315,47 +478,144 @@ public class WMIClientCmd {
 			if (options.length != 1) {
 				printUsage("process <kill|status> <pid>");
 			}
+		} else if (action.equals("run")) {
+			if (options.length < 2)
+				printUsage("process run <seconds> <command>");
+		} else if (action.equals("wait")) {
+			if (options.length != 2)
+				printUsage("process wait <pid> <seconds>");
 		} else {
-			printUsage("process <create|kill|status>");
+			printUsage("process <create|run|wait|kill|status>");
 		}
 		
 		// Execute process command
 		if (action.equals("create")) {
 			int pid = system.processes.create(options);
-			System.out.println(pid);
+			printLine(Integer.toString(pid));
 		} else if (action.equals("kill")) {
 			system.processes.kill(Integer.parseInt(options[0]));
 		} else if (action.equals("status")) {
 			String[] status = system.processes.status(Integer.parseInt(options[0]));
-			if (status != null) {
-				for (String state : status) {
-					if (state != null)
-						System.out.println(state);
-				}
-			}
+			printLines(status);
+		} else if (action.equals("run") || action.equals("wait")) {
+			ProcessExit exit = null;
+			if (action.equals("run"))
+				exit = system.processes.createAndWait(Utils.slice(options, 1), (long)(Double.parseDouble(options[0]) * 1000));
+			else
+				exit = system.processes.awaitExit(Integer.parseInt(options[0]), (long)(Double.parseDouble(options[1]) * 1000));
+			
+			if (output != null)
+				output.writeRecord(ProcessExit.COLUMNS, exit.getRecord());
+			else
+				System.out.println(exit.getPid() + "\t" + (exit.getExitStatus() == null ? "" : exit.getExitStatus().toString()) + "\t" + exit.getElapsed());
+			if (!exit.hasExited())
+				exitTimedOut("timed out waiting for process " + exit.getPid() + " to exit");
 		}
 	}
 
 	/**
 	 * Handle the query sub command.
 	 * @throws JIException 
+	 * @throws UnknownHostException 
 	 */
-	private static void queryCmd(ManagedSystem system, String[] args) throws JIException {
-		String usageStr = "query network|uuid";
-		if (args.length != 1)
+	private static void queryCmd(ManagedSystem system, String[] args) throws UnknownHostException, JIException {
+		String usageStr = "query network|uuid|software|wql";
+		if (args.length == 0 || (!args[0].equals("wql") && args.length != 1))
 			printUsage(usageStr);
 		
 		// Execute process command
-		if (args[0].equals("network")) {
+		if (args[0].equals("wql")) {
+			if (args.length < 3)
+				printUsage("query wql <query> <property> [<property> ...]");
+			final RecordDecoder decoder = new RecordDecoder(Utils.slice(args, 2));
+			system.query.query(args[1], new QueryResultHandler() {
+				public void handleResult(JIVariant result) throws JIException {
+					WbemRecord row = decoder.decode(result);
+					if (output != null) {
+						Object[] values = new Object[row.getColumns().length];
+						for (int i=0; i<values.length; i++)
+							values[i] = row.get(i);
+						output.writeRecord(row.getColumns(), values);
+						return;
+					}
+					for (int i=0; i<row.getColumns().length; i++) {
+						if (i > 0)
+							System.out.print("\t");
+						if (!row.isNull(i))
+							System.out.print(row.getString(i));
+					}
+					System.out.println();
+				}
+			});
+		} else if (args[0].equals("network")) {
 			NetworkQueryResults[] results = system.query.queryNetwork();
-			system.query.displayNetworkQueryResults(results, System.out);
+			if (output != null)
+				writeNetworkRecords(results);
+			else
+				system.query.displayNetworkQueryResults(results, System.out);
 		} else if (args[0].equals("uuid")) {
 			String uuid = system.query.queryUUID();
-			System.out.println(uuid);
+			printLine(uuid);
+		} else if (args[0].equals("software")) {
+			for (WbemRecord record : system.software.list()) {
+				if (output != null) {
+					Object[] values = new Object[Software.COLUMNS.length];
+					for (int i=0; i<values.length; i++)
+						values[i] = record.get(i);
+					output.writeRecord(Software.COLUMNS, values);
+					continue;
+				}
+				for (int i=0; i<Software.COLUMNS.length; i++) {
+					if (i > 0)
+						System.out.print("\t");
+					if (!record.isNull(i))
+						System.out.print(record.getString(i));
+				}
+				System.out.println();
+			}
 		} else {
 			printUsage(usageStr);
 		}
 	}
-}
 
+	/*
+	 * Output helpers.
+	 */
 	
+	/**
+	 * Fail with WAIT_TIMEOUT, ending the JSON stream with an error record
+	 * when there is one.
+	 * @param message text for stderr
+	 */
+	private static void exitTimedOut(String message) {
+		if (output != null)
+			output.reportError("0x" + Integer.toHexString(WAIT_TIMEOUT).toUpperCase());
+		System.err.println(message);
+		System.exit(1);
+	}
+	
+	private static void printLine(String line) {
+		if (output != null)
+			output.writeOutput(line);
+		else
+			System.out.println(line);
+	}
+	
+	private static void printLines(String[] lines) {
+		if (lines == null)
+			return;
+		for (String line : lines) {
+			if (line != null)
+				printLine(line);
+		}
+	}
+	
+	private static void writeNetworkRecords(NetworkQueryResults[] results) {
+		for (NetworkQueryResults result : results) {
+			if (result == null)
+				continue;
+			for (Object[] record : result.getRecords())
+				output.writeRecord(NetworkQueryResults.COLUMNS, record);
+		}
+	}
+}
\ No newline at end of file
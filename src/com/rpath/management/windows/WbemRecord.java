@@ -0,0 +1,212 @@
+/**
+ * Copyright (c) 2010 rPath, Inc.
+ */
+package com.rpath.management.windows;
+
+/**
+ * Class for holding the decoded properties of a single WMI object.
+ *
+ * Values are stored by column index in the order the columns were requested.
+ * Properties that are NULL or missing on the remote object are stored as
+ * null. Scalar values are String, Long, Double or Boolean; arrays are
+ * Object[] of those.
+ */
+public class WbemRecord {
+	private String[] columns = null;
+	private Object[] values = null;
+
+	/**
+	 * Constructor
+	 * @param columns property names, shared with other records from the same decoder
+	 */
+	public WbemRecord(String[] columns) {
+		this.columns = columns;
+		this.values = new Object[columns.length];
+	}
+
+	/**
+	 * @return property names in column order
+	 */
+	public String[] getColumns() {
+		return this.columns;
+	}
+
+	/**
+	 * Find the column index of a property.
+	 * @param column property name, case insensitive
+	 * @return index of the column or -1 if it was not requested
+	 */
+	public int indexOf(String column) {
+		for (int i=0; i<this.columns.length; i++) {
+			if (this.columns[i].equalsIgnoreCase(column))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Set a column value.
+	 * @param index column index
+	 * @param value decoded value
+	 */
+	void set(int index, Object value) {
+		this.values[index] = value;
+	}
+
+	/**
+	 * Get the raw decoded value of a column.
+	 * @param index column index
+	 */
+	public Object get(int index) {
+		return this.values[index];
+	}
+
+	/**
+	 * Get the raw decoded value of a column.
+	 * @param column property name
+	 */
+	public Object get(String column) {
+		int index = this.indexOf(column);
+		if (index < 0)
+			return null;
+		return this.values[index];
+	}
+
+	/**
+	 * Check if a column is NULL.
+	 * @param index column index
+	 */
+	public boolean isNull(int index) {
+		return this.values[index] == null;
+	}
+
+	/**
+	 * Get a column as a string.
+	 * @param index column index
+	 * @return string value or null
+	 */
+	public String getString(int index) {
+		Object value = this.values[index];
+		if (value == null)
+			return null;
+		if (value instanceof Object[])
+			return Utils.join(this.getStringArray(index), ",");
+		return value.toString();
+	}
+
+	/**
+	 * Get a column as a string.
+	 * @param column property name
+	 */
+	public String getString(String column) {
+		int index = this.indexOf(column);
+		if (index < 0)
+			return null;
+		return this.getString(index);
+	}
+
+	/**
+	 * Get a numeric column. 64 bit integers are sent as strings by WMI so
+	 * those are parsed as well.
+	 * @param index column index
+	 * @param defaultValue value to return if the column is NULL
+	 */
+	public long getLong(int index, long defaultValue) {
+		Object value = this.values[index];
+		if (value == null)
+			return defaultValue;
+		if (value instanceof Number)
+			return ((Number)value).longValue();
+		if (value instanceof Boolean)
+			return ((Boolean)value).booleanValue() ? 1 : 0;
+		return Long.parseLong(value.toString().trim());
+	}
+
+	/**
+	 * Get a numeric column.
+	 * @param column property name
+	 * @param defaultValue value to return if the column is NULL
+	 */
+	public long getLong(String column, long defaultValue) {
+		int index = this.indexOf(column);
+		if (index < 0)
+			return defaultValue;
+		return this.getLong(index, defaultValue);
+	}
+
+	/**
+	 * Get a numeric column as an int.
+	 * @param index column index
+	 * @param defaultValue value to return if the column is NULL
+	 */
+	public int getInt(int index, int defaultValue) {
+		return (int)this.getLong(index, defaultValue);
+	}
+
+	/**
+	 * Get a numeric column as an int.
+	 * @param column property name
+	 * @param defaultValue value to return if the column is NULL
+	 */
+	public int getInt(String column, int defaultValue) {
+		return (int)this.getLong(column, defaultValue);
+	}
+
+	/**
+	 * Get a boolean column.
+	 * @param index column index
+	 * @return the value, false if the column is NULL
+	 */
+	public boolean getBoolean(int index) {
+		Object value = this.values[index];
+		if (value == null)
+			return false;
+		if (value instanceof Boolean)
+			return ((Boolean)value).booleanValue();
+		if (value instanceof Number)
+			return ((Number)value).longValue() != 0;
+		return Boolean.parseBoolean(value.toString());
+	}
+
+	/**
+	 * Get a boolean column.
+	 * @param column property name
+	 */
+	public boolean getBoolean(String column) {
+		int index = this.indexOf(column);
+		if (index < 0)
+			return false;
+		return this.getBoolean(index);
+	}
+
+	/**
+	 * Get an array column as strings. A scalar value is returned as a one
+	 * element array.
+	 * @param index column index
+	 * @return array of values, empty if the column is NULL
+	 */
+	public String[] getStringArray(int index) {
+		Object value = this.values[index];
+		if (value == null)
+			return new String[0];
+		if (!(value instanceof Object[]))
+			return new String[] {value.toString(), };
+
+		Object[] array = (Object[])value;
+		String[] output = new String[array.length];
+		for (int i=0; i<array.length; i++)
+			output[i] = array[i] == null ? null : array[i].toString();
+		return output;
+	}
+
+	/**
+	 * Get an array column as strings.
+	 * @param column property name
+	 */
+	public String[] getStringArray(String column) {
+		int index = this.indexOf(column);
+		if (index < 0)
+			return new String[0];
+		return this.getStringArray(index);
+	}
+}
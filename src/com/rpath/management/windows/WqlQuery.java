@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2010 rPath, Inc.
+ */
+package com.rpath.management.windows;
+
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Class for building projected WQL queries.
+ *
+ * Only the requested columns are selected so that the provider doesn't have
+ * to build and marshal every property of the class. Filter values are typed
+ * and string literals are always quoted and escaped.
+ */
+public class WqlQuery {
+	private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+	private static final String[] OPERATORS = {"=", "<>", "!=", "<", ">", "<=", ">=", "LIKE"};
+
+	private String className = null;
+	private String[] columns = null;
+	private ArrayList<String> conditions = null;
+
+	/**
+	 * Constructor
+	 * @param className WMI class to query
+	 * @param columns properties to select, all properties if none are given
+	 */
+	public WqlQuery(String className, String... columns) {
+		this.className = checkIdentifier(className);
+		for (String column : columns)
+			checkIdentifier(column);
+		this.columns = columns;
+		this.conditions = new ArrayList<String>();
+	}
+
+	/**
+	 * @return the selected properties
+	 */
+	public String[] getColumns() {
+		return this.columns;
+	}
+
+	/**
+	 * Get a decoder for the results of this query.
+	 */
+	public RecordDecoder getDecoder() {
+		return new RecordDecoder(this.columns);
+	}
+
+	/**
+	 * Match a string property.
+	 * @param property property name
+	 * @param value value to compare against
+	 */
+	public WqlQuery where(String property, String value) {
+		return this.where(property, "=", value);
+	}
+
+	/**
+	 * Compare a string property.
+	 * @param property property name
+	 * @param operator comparison operator
+	 * @param value value to compare against
+	 */
+	public WqlQuery where(String property, String operator, String value) {
+		return this.addCondition(property, operator, quote(value));
+	}
+
+	/**
+	 * Match a numeric property.
+	 * @param property property name
+	 * @param value value to compare against
+	 */
+	public WqlQuery where(String property, long value) {
+		return this.where(property, "=", value);
+	}
+
+	/**
+	 * Compare a numeric property.
+	 * @param property property name
+	 * @param operator comparison operator
+	 * @param value value to compare against
+	 */
+	public WqlQuery where(String property, String operator, long value) {
+		return this.addCondition(property, operator, Long.toString(value));
+	}
+
+	/**
+	 * Match a boolean property.
+	 * @param property property name
+	 * @param value value to compare against
+	 */
+	public WqlQuery where(String property, boolean value) {
+		return this.addCondition(property, "=", value ? "TRUE" : "FALSE");
+	}
+
+	/**
+	 * Match a string property against any of a set of values.
+	 * @param property property name
+	 * @param values values to compare against
+	 */
+	public WqlQuery whereIn(String property, String... values) {
+		if (values.length == 0)
+			throw new IllegalArgumentException("no values for " + property);
+
+		checkIdentifier(property);
+		StringBuilder buf = new StringBuilder("(");
+		for (int i=0; i<values.length; i++) {
+			if (i > 0)
+				buf.append(" OR ");
+			buf.append(property).append(" = ").append(quote(values[i]));
+		}
+		buf.append(")");
+		this.conditions.add(buf.toString());
+		return this;
+	}
+
+	private WqlQuery addCondition(String property, String operator, String literal) {
+		checkIdentifier(property);
+		boolean valid = false;
+		for (String op : OPERATORS) {
+			if (op.equalsIgnoreCase(operator))
+				valid = true;
+		}
+		if (!valid)
+			throw new IllegalArgumentException("invalid WQL operator: " + operator);
+
+		this.conditions.add(property + " " + operator + " " + literal);
+		return this;
+	}
+
+	/**
+	 * Build the WQL query string.
+	 */
+	public String toString() {
+		StringBuilder buf = new StringBuilder("SELECT ");
+		if (this.columns.length == 0)
+			buf.append("*");
+		else
+			buf.append(Utils.join(this.columns, ", "));
+
+		buf.append(" FROM ").append(this.className);
+
+		for (int i=0; i<this.conditions.size(); i++) {
+			buf.append(i == 0 ? " WHERE " : " AND ");
+			buf.append(this.conditions.get(i));
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Quote a string as a WQL literal.
+	 * @param value string to quote
+	 */
+	public static String quote(String value) {
+		StringBuilder buf = new StringBuilder(value.length() + 2);
+		buf.append('\'');
+		for (int i=0; i<value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '\'')
+				buf.append('\\');
+			buf.append(c);
+		}
+		buf.append('\'');
+		return buf.toString();
+	}
+
+	/**
+	 * Make sure a class or property name can be put into a query as is.
+	 * @param name identifier
+	 */
+	private static String checkIdentifier(String name) {
+		if (name == null || !IDENTIFIER.matcher(name).matches())
+			throw new IllegalArgumentException("invalid WQL identifier: " + name);
+		return name;
+	}
+}
@@ -3,15 +3,34 @@ package com.rpath.management.windows.streaming;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.JIVariant;
 
 import com.rpath.management.windows.ManagedSystem;
 import com.rpath.management.windows.NetworkQueryResults;
+import com.rpath.management.windows.ProcessExit;
+import com.rpath.management.windows.QueryResultHandler;
+import com.rpath.management.windows.RecordDecoder;
+import com.rpath.management.windows.Registry;
+import com.rpath.management.windows.RegistryEntryHandler;
+import com.rpath.management.windows.RegistryValue;
+import com.rpath.management.windows.ServiceEventHandler;
 import com.rpath.management.windows.ServiceNotFoundError;
+import com.rpath.management.windows.Services;
+import com.rpath.management.windows.Software;
 import com.rpath.management.windows.Utils;
+import com.rpath.management.windows.WbemRecord;
 
 public class CommandProcessor extends IPC {
+	private static final String[] STATS_COLUMNS = {"Name", "Value"};
+	private static final int WAIT_TIMEOUT = 0x102;
+	
 	private ManagedSystem system;
 	
 	public CommandProcessor(ManagedSystem system, InputStream input, PrintStream output, PrintStream error) {
@@ -23,6 +42,11 @@ public class CommandProcessor extends IPC {
 		this.system = system;
 	}
 	
+	@Override
+	protected IPC createWorker(PrintStream output) {
+		return new CommandProcessor(this.system, null, output, this.error);
+	}
+	
 	public void run() throws Exception {
 		try {
 			super.run();
@@ -55,10 +79,20 @@ public class CommandProcessor extends IPC {
 		String cmd = this.command[1];
 		if (cmd.equals("getkey"))
 			this.handleRegistryGetKey();
+		else if (cmd.equals("getkeys"))
+			this.handleRegistryGetKeys();
+		else if (cmd.equals("walk"))
+			this.handleRegistryWalk();
 		else if (cmd.equals("setkey"))
 			this.handleRegistrySetKey();
+		else if (cmd.equals("setkeys"))
+			this.handleRegistrySetKeys();
 		else if (cmd.equals("createkey"))
 			this.handleRegistryCreateKey();
+		else if (cmd.equals("cache"))
+			this.handleRegistryCache();
+		else if (cmd.equals("stats"))
+			this.handleRegistryStats();
 		else
 			this.reportError("invalid option registry " + cmd);
 	}
@@ -81,6 +115,104 @@ public class CommandProcessor extends IPC {
 		this.endOutput();
 	}
 
+	private void handleRegistryGetKeys() {
+		int count = this.getCommandLength() - 1;
+		if (count < 2 || count % 2 != 0) {
+			this.reportError("registry getkeys <keyPath> <key> [<keyPath> <key> ...]");
+			return;
+		}
+		
+		String[][] items = new String[count / 2][];
+		for (int i=0; i<items.length; i++)
+			items[i] = new String[] {this.command[2 + i*2], this.command[3 + i*2], };
+		
+		LinkedHashMap<String, RegistryValue> results;
+		try {
+			results = this.system.registry.getKeys(items);
+		} catch (UnknownHostException e) {
+			this.reportError("getkeys failed");
+			return;
+		} catch (JIException e) {
+			this.reportError(e.getErrorCode());
+			return;
+		}
+		
+		// One row per value: key path, name, error code and the data
+		this.startOutput();
+		for (RegistryValue value : results.values()) {
+			if (this.isStructuredOutput())
+				this.writeRecord(RegistryValue.COLUMNS, value.getRecord());
+			else
+				this.writeOutput(value.toString());
+		}
+		this.endOutput();
+	}
+
+	private void handleRegistryWalk() {
+		int length = this.getCommandLength();
+		if (length < 2 || length > 5) {
+			this.reportError("registry walk <keyPath> [<maxDepth> [<include> [<exclude>]]]");
+			return;
+		}
+		
+		int maxDepth = -1;
+		Pattern include = null;
+		Pattern exclude = null;
+		try {
+			if (length >= 3)
+				maxDepth = Integer.parseInt(this.command[3]);
+			if (length >= 4 && this.command[4].length() > 0)
+				include = Pattern.compile(this.command[4], Pattern.CASE_INSENSITIVE);
+			if (length >= 5 && this.command[5].length() > 0)
+				exclude = Pattern.compile(this.command[5], Pattern.CASE_INSENSITIVE);
+		} catch (NumberFormatException e) {
+			this.reportError("invalid depth " + this.command[3]);
+			return;
+		} catch (PatternSyntaxException e) {
+			this.reportError("invalid pattern " + e.getPattern());
+			return;
+		}
+		
+		final boolean[] started = {false};
+		try {
+			this.system.registry.walk(this.command[2], maxDepth, include, exclude, new RegistryEntryHandler() {
+				public void handleEntry(String keyPath, String name, int type, String[] data) {
+					if (!started[0]) {
+						startOutput();
+						started[0] = true;
+					}
+					
+					if (isStructuredOutput()) {
+						writeRecord(RegistryEntryHandler.COLUMNS, new Object[] {
+							keyPath, name, Registry.typeName(type), data, });
+						return;
+					}
+					
+					StringBuilder row = new StringBuilder();
+					row.append(keyPath).append('\t').append(name).append('\t').append(Registry.typeName(type));
+					if (data != null) {
+						for (String line : data)
+							row.append('\t').append(line);
+					}
+					writeOutput(row.toString());
+				}
+			});
+		} catch (UnknownHostException e) {
+			this.reportError("walk failed");
+			return;
+		} catch (JIException e) {
+			if (started[0])
+				this.abortOutput("0x" + Integer.toHexString(e.getErrorCode()).toUpperCase());
+			else
+				this.reportError(e.getErrorCode());
+			return;
+		}
+		
+		if (!started[0])
+			this.startOutput();
+		this.endOutput();
+	}
+
 	private void handleRegistrySetKey() {
 		String[] values = Utils.slice(this.command, 4, this.getCommandLength());
 
@@ -90,8 +222,6 @@ public class CommandProcessor extends IPC {
 			if (values.length >= 1 && this.system.registry.types.containsKey(values[0])) {
 				data_type = values[0];
 				values = Utils.slice(values, 1);
-			} else {
-				data_type = this.system.registry.REG_MULTI_SZ;
 			}
 			this.system.registry.setKey(this.command[2], this.command[3], values, data_type);
 		} catch (UnknownHostException e) {
@@ -107,6 +237,84 @@ public class CommandProcessor extends IPC {
 		this.endOutput();
 	}
 
+	private void handleRegistrySetKeys() {
+		String usage = "registry setkeys <keyPath> [<type>] <key> <value> [<key> <value> ...]";
+		
+		// At least a key path, a key and a value
+		if (this.getCommandLength() < 4) {
+			this.reportError(usage);
+			return;
+		}
+		String[] args = Utils.slice(this.command, 3, this.getCommandLength());
+		
+		// An odd number of arguments means the first one is the data type
+		String data_type = null;
+		if (args.length % 2 == 1 && this.system.registry.types.containsKey(args[0])) {
+			data_type = args[0];
+			args = Utils.slice(args, 1);
+		}
+		if (args.length == 0 || args.length % 2 != 0) {
+			this.reportError(usage);
+			return;
+		}
+		
+		LinkedHashMap<String, String[]> values = new LinkedHashMap<String, String[]>();
+		for (int i=0; i<args.length; i+=2)
+			values.put(args[i], new String[] {args[i+1], });
+		
+		LinkedHashMap<String, RegistryValue> results;
+		try {
+			results = this.system.registry.setKeys(this.command[2], values,
+					data_type == null ? null : (Integer)this.system.registry.types.get(data_type));
+		} catch (UnknownHostException e) {
+			this.reportError("setkeys failed");
+			return;
+		} catch (JIException e) {
+			this.reportError(e.getErrorCode());
+			return;
+		}
+		
+		// One row per value: key path, name, error code and the data written
+		this.startOutput();
+		for (RegistryValue value : results.values()) {
+			if (this.isStructuredOutput())
+				this.writeRecord(RegistryValue.COLUMNS, value.getRecord());
+			else
+				this.writeOutput(value.toString());
+		}
+		this.endOutput();
+	}
+
+	private void handleRegistryCache() {
+		long ttl = -1;
+		try {
+			if (this.getCommandLength() >= 2)
+				ttl = (long)(Double.parseDouble(this.command[2]) * 1000);
+		} catch (NumberFormatException e) {
+		}
+		if (ttl < 0) {
+			this.reportError("registry cache <seconds> [<keyPath>]");
+			return;
+		}
+		
+		if (this.getCommandLength() >= 3)
+			this.system.registry.getCache().setTtl(this.command[3], ttl);
+		else
+			this.system.registry.getCache().setTtl(ttl);
+		
+		this.startOutput();
+		this.writeOutput("done");
+		this.endOutput();
+	}
+
+	private void handleRegistryStats() {
+		// One row per counter: name and value
+		this.startOutput();
+		for (Map.Entry<String, Long> stat : this.system.registry.getStats().entrySet())
+			this.writeRecord(STATS_COLUMNS, new Object[] {stat.getKey(), stat.getValue(), });
+		this.endOutput();
+	}
+
 	private void handleRegistryCreateKey() {
 		try {
 			this.system.registry.createKey(this.command[2], this.command[3]);
@@ -131,6 +339,16 @@ public class CommandProcessor extends IPC {
 			this.handleServiceStop();
 		else if (cmd.equals("getstatus"))
 			this.handleServiceGetStatus();
+		else if (cmd.equals("snapshot"))
+			this.handleServiceSnapshot();
+		else if (cmd.equals("await"))
+			this.handleServiceAwait();
+		else if (cmd.equals("watch"))
+			this.handleServiceWatch();
+		else if (cmd.equals("startall"))
+			this.handleServiceBulk(true);
+		else if (cmd.equals("stopall"))
+			this.handleServiceBulk(false);
 		else
 			this.reportError("invalid command: " + cmd);
 	}
@@ -146,7 +364,7 @@ public class CommandProcessor extends IPC {
 		}
 
 		this.startOutput();
-		Utils.displayStringArray(status, this.out);
+		this.writeOutput(status);
 		this.endOutput();
 	}
 
@@ -161,7 +379,118 @@ public class CommandProcessor extends IPC {
 		}
 		
 		this.startOutput();
-		Utils.displayStringArray(status, this.out);
+		this.writeOutput(status);
+		this.endOutput();
+	}
+
+	private void handleServiceSnapshot() {
+		LinkedHashMap<String, WbemRecord> services = null;
+		try {
+			services = this.system.services.snapshot(Utils.slice(this.command, 2, this.getCommandLength()));
+		} catch (JIException e) {
+			this.reportError(e.getErrorCode());
+			return;
+		}
+		
+		this.startOutput();
+		for (WbemRecord service : services.values()) {
+			Object[] values = new Object[Services.SNAPSHOT_COLUMNS.length];
+			for (int i=0; i<values.length; i++)
+				values[i] = service.get(i);
+			this.writeRecord(Services.SNAPSHOT_COLUMNS, values);
+		}
+		this.endOutput();
+	}
+
+	private void handleServiceAwait() {
+		long timeout = -1;
+		try {
+			if (this.getCommandLength() == 4)
+				timeout = (long)(Double.parseDouble(this.command[4]) * 1000);
+		} catch (NumberFormatException e) {
+		}
+		if (timeout < 0) {
+			this.reportError("service await <serviceName> <state> <seconds>");
+			return;
+		}
+		
+		try {
+			if (!this.system.services.awaitState(this.command[2], this.command[3], timeout)) {
+				this.reportError(WAIT_TIMEOUT);
+				return;
+			}
+		} catch (JIException e) {
+			this.reportError(e.getErrorCode());
+			return;
+		} catch (ServiceNotFoundError e) {
+			this.reportError(e.getError());
+			return;
+		}
+		
+		this.startOutput();
+		this.writeOutput(this.command[3]);
+		this.endOutput();
+	}
+
+	private void handleServiceWatch() {
+		long timeout = -1;
+		try {
+			if (this.getCommandLength() >= 2)
+				timeout = (long)(Double.parseDouble(this.command[2]) * 1000);
+		} catch (NumberFormatException e) {
+		}
+		if (timeout < 0) {
+			this.reportError("service watch <seconds> [<serviceName> ...]");
+			return;
+		}
+		
+		final boolean[] started = {false};
+		try {
+			this.system.services.watch(Utils.slice(this.command, 3, this.getCommandLength()), timeout, new ServiceEventHandler() {
+				public boolean handleEvent(String name, String state, String previousState) {
+					if (!started[0]) {
+						startOutput();
+						started[0] = true;
+					}
+					writeRecord(ServiceEventHandler.COLUMNS, new Object[] {name, state, previousState, });
+					return true;
+				}
+			});
+		} catch (JIException e) {
+			if (started[0])
+				this.abortOutput("0x" + Integer.toHexString(e.getErrorCode()).toUpperCase());
+			else
+				this.reportError(e.getErrorCode());
+			return;
+		}
+		
+		if (!started[0])
+			this.startOutput();
+		this.endOutput();
+	}
+
+	private void handleServiceBulk(boolean start) {
+		String[] names = Utils.slice(this.command, 2, this.getCommandLength());
+		if (names.length == 0) {
+			this.reportError("service " + this.command[1] + " <serviceName> [<serviceName> ...]");
+			return;
+		}
+		
+		LinkedHashMap<String, String> results = null;
+		try {
+			if (start)
+				results = this.system.services.startServices(names);
+			else
+				results = this.system.services.stopServices(names);
+		} catch (JIException e) {
+			this.reportError(e.getErrorCode());
+			return;
+		}
+		
+		// One row per service: name and status
+		this.startOutput();
+		for (Map.Entry<String, String> result : results.entrySet())
+			this.writeRecord(Services.BULK_COLUMNS, new Object[] {result.getKey(), result.getValue(), });
 		this.endOutput();
 	}
 
@@ -176,7 +505,7 @@ public class CommandProcessor extends IPC {
 		}
 		
 		this.startOutput();
-		Utils.displayStringArray(status, this.out);
+		this.writeOutput(status);
 		this.endOutput();
 	}
 	
@@ -188,6 +517,10 @@ public class CommandProcessor extends IPC {
 			this.handleProcessKill();
 		else if (cmd.equals("status"))
 			this.handleProcessStatus();
+		else if (cmd.equals("run"))
+			this.handleProcessRun();
+		else if (cmd.equals("wait"))
+			this.handleProcessWait();
 		else
 			this.reportError("invalid command: " + cmd);
 	}
@@ -205,6 +538,65 @@ public class CommandProcessor extends IPC {
 		this.endOutput();
 	}
 
+	private void handleProcessRun() {
+		long timeout = -1;
+		try {
+			if (this.getCommandLength() >= 3)
+				timeout = (long)(Double.parseDouble(this.command[2]) * 1000);
+		} catch (NumberFormatException e) {
+		}
+		if (timeout < 0) {
+			this.reportError("process run <seconds> <command>");
+			return;
+		}
+		
+		ProcessExit exit = null;
+		try {
+			exit = this.system.processes.createAndWait(Utils.slice(this.command, 3, this.getCommandLength()), timeout);
+		} catch (JIException e) {
+			this.reportError(e.getErrorCode());
+			return;
+		}
+		this.writeProcessExit(exit);
+	}
+
+	private void handleProcessWait() {
+		int pid = -1;
+		long timeout = -1;
+		try {
+			if (this.getCommandLength() == 3) {
+				pid = Integer.parseInt(this.command[2]);
+				timeout = (long)(Double.parseDouble(this.command[3]) * 1000);
+			}
+		} catch (NumberFormatException e) {
+		}
+		if (pid < 0 || timeout < 0) {
+			this.reportError("process wait <pid> <seconds>");
+			return;
+		}
+		
+		ProcessExit exit = null;
+		try {
+			exit = this.system.processes.awaitExit(pid, timeout);
+		} catch (JIException e) {
+			this.reportError(e.getErrorCode());
+			return;
+		}
+		this.writeProcessExit(exit);
+	}
+
+	/**
+	 * Report how a process exited: process ID, exit status and elapsed
+	 * milliseconds. A process that didn't exit in time is reported with
+	 * return code WAIT_TIMEOUT and no exit status, so the caller still gets
+	 * the process ID to wait on or kill.
+	 */
+	private void writeProcessExit(ProcessExit exit) {
+		this.startOutput(exit.hasExited() ? 0 : WAIT_TIMEOUT);
+		this.writeRecord(ProcessExit.COLUMNS, exit.getRecord());
+		this.endOutput();
+	}
+
 	private void handleProcessKill() {
 		this.reportError("command not implemented");
 		
@@ -225,7 +617,7 @@ public class CommandProcessor extends IPC {
 		}
 		
 		this.startOutput();
-		Utils.displayStringArray(status, this.out);
+		this.writeOutput(status);
 		this.endOutput();
 	}
 
@@ -235,6 +627,10 @@ public class CommandProcessor extends IPC {
 			this.handleQueryUUID();
 		else if (cmd.equals("network"))
 			this.handleQueryNetwork();
+		else if (cmd.equals("wql"))
+			this.handleQueryWQL();
+		else if (cmd.equals("software"))
+			this.handleQuerySoftware();
 		else
 			this.reportError("invalid command: " + cmd);
 	}
@@ -259,10 +655,77 @@ public class CommandProcessor extends IPC {
 			results = system.query.queryNetwork();
 		} catch (JIException e) {
 			this.reportError(e.getErrorCode());
+			return;
+		}
+
+		this.startOutput();
+		if (this.isStructuredOutput()) {
+			for (NetworkQueryResults result : results) {
+				if (result == null)
+					continue;
+				for (Object[] record : result.getRecords())
+					this.writeRecord(NetworkQueryResults.COLUMNS, record);
+			}
+		} else {
+			this.writeOutput(this.system.query.formatNetworkQueryResults(results));
 		}
+		this.endOutput();
+	}
 
+	private void handleQuerySoftware() {
+		ArrayList<WbemRecord> records = null;
+		try {
+			records = this.system.software.list();
+		} catch (UnknownHostException e) {
+			this.reportError("query software failed: " + e.getMessage());
+			return;
+		} catch (JIException e) {
+			this.reportError(e.getErrorCode());
+			return;
+		}
+		
 		this.startOutput();
-		this.system.query.displayNetworkQueryResults(results, this.out);
+		for (WbemRecord record : records) {
+			Object[] values = new Object[Software.COLUMNS.length];
+			for (int i=0; i<values.length; i++)
+				values[i] = record.get(i);
+			this.writeRecord(Software.COLUMNS, values);
+		}
+		this.endOutput();
+	}
+
+	private void handleQueryWQL() {
+		final RecordDecoder decoder = new RecordDecoder(Utils.slice(this.command, 3, this.getCommandLength()));
+		final boolean[] started = {false};
+		
+		try {
+			this.system.query.query(this.command[2], new QueryResultHandler() {
+				public void handleResult(JIVariant result) throws JIException {
+					WbemRecord row = decoder.decode(result);
+					
+					Object[] values = new Object[row.getColumns().length];
+					for (int i=0; i<values.length; i++)
+						values[i] = row.get(i);
+					
+					// Start output with the first row so that errors raised
+					// before any results are reported normally.
+					if (!started[0]) {
+						startOutput();
+						started[0] = true;
+					}
+					writeRecord(row.getColumns(), values);
+				}
+			});
+		} catch (JIException e) {
+			if (started[0])
+				this.abortOutput("0x" + Integer.toHexString(e.getErrorCode()).toUpperCase());
+			else
+				this.reportError(e.getErrorCode());
+			return;
+		}
+		
+		if (!started[0])
+			this.startOutput();
 		this.endOutput();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,99 @@
+package com.rpath.management.windows.streaming;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+import org.jinterop.dcom.common.JISystem;
+
+import com.rpath.management.windows.ManagedSystemPool;
+
+/**
+ * Class to serve the streaming command protocol to many clients at once.
+ *
+ * Each accepted connection gets its own command processor and thread; all of
+ * them share one pool of ManagedSystem connections. Only the loopback
+ * interface is listened on since credentials are sent in the clear.
+ */
+public class Daemon {
+	private ServerSocket server;
+	private ManagedSystemPool pool;
+	private ExecutorService workers;
+	private Logger log;
+	
+	public Daemon(int port, ManagedSystemPool pool) throws IOException {
+		this.server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		this.pool = pool;
+		this.workers = Executors.newCachedThreadPool();
+		this.log = JISystem.getLogger();
+	}
+	
+	/**
+	 * @return port the daemon is listening on
+	 */
+	public int getPort() {
+		return this.server.getLocalPort();
+	}
+	
+	/**
+	 * Accept client connections until the daemon is shut down.
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		while (!this.server.isClosed()) {
+			final Socket client;
+			try {
+				client = this.server.accept();
+			} catch (IOException e) {
+				if (this.server.isClosed())
+					break;
+				throw e;
+			}
+			
+			this.workers.execute(new Runnable() {
+				public void run() {
+					serve(client);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Run commands for a single client until it disconnects.
+	 * @param client client connection
+	 */
+	private void serve(Socket client) {
+		try {
+			PrintStream out = new PrintStream(new BufferedOutputStream(client.getOutputStream()), true);
+			CommandProcessor processor = new DaemonCommandProcessor(this.pool,
+					new BufferedInputStream(client.getInputStream()), out, System.err);
+			processor.run();
+		} catch (Exception e) {
+			this.log.info("client " + client.getRemoteSocketAddress() + " failed: " + e.getMessage());
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+	
+	/**
+	 * Stop accepting connections and close all pooled systems.
+	 */
+	public void shutdown() {
+		try {
+			this.server.close();
+		} catch (IOException e) {
+		}
+		this.workers.shutdownNow();
+		this.pool.close();
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * 
+ */
+package com.rpath.management.windows.streaming;
+
+import java.io.IOException;
+import java.util.logging.Level;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.rpath.management.windows.JILogging;
+import com.rpath.management.windows.ManagedSystemPool;
+
+/**
+ * Command line entry point for the long running wmiclient daemon.
+ */
+public class DaemonCmd {
+	private final static String usage = "wmicd [options]";
+	
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		Options options = getOptions();
+		CommandLine cmdline = null;
+		CommandLineParser parser = new DefaultParser();
+		try {
+			cmdline = parser.parse(options, args);
+		} catch (ParseException exp) {
+			System.out.println("Command line parsing failed: " + exp.getMessage());
+			new HelpFormatter().printHelp(usage, options);
+			System.exit(1);
+		}
+		
+		if (cmdline.hasOption("help")) {
+			new HelpFormatter().printHelp(usage, options);
+			System.exit(0);
+		}
+		
+		Level level = Level.WARNING;
+		if (cmdline.hasOption("debug")) {
+			level = Level.ALL;
+		} else if (cmdline.hasOption("verbose")) {
+			level = Level.INFO;
+		}
+		
+		try {
+			@SuppressWarnings("unused")
+			JILogging log = new JILogging(level);
+		} catch (SecurityException e) {
+			e.printStackTrace();
+			System.exit(1);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		
+		int port = Integer.parseInt(cmdline.getOptionValue("port", "8135"));
+		int maxSystems = Integer.parseInt(cmdline.getOptionValue("max-systems", "256"));
+		long idleTimeout = Long.parseLong(cmdline.getOptionValue("idle-timeout", "300")) * 1000;
+		
+		ManagedSystemPool pool = new ManagedSystemPool(maxSystems, idleTimeout);
+		
+		try {
+			final Daemon daemon = new Daemon(port, pool);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					daemon.shutdown();
+				}
+			});
+			daemon.run();
+		} catch (IOException e) {
+			e.printStackTrace();
+			pool.close();
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Build up options structure.
+	 * @return populated options structure.
+	 */
+	@SuppressWarnings("static-access")
+	private static Options getOptions() {
+		Options options = new Options();
+		
+		Option help = OptionBuilder.withLongOpt("help").withDescription("print this message").create();
+		Option verbose = OptionBuilder.withLongOpt("verbose").withDescription("be more verbose").create();
+		Option debug = OptionBuilder.withLongOpt("debug").withDescription("print debugging information").create();
+		
+		Option port = OptionBuilder.withLongOpt("port").withArgName("port").hasArg().withDescription("localhost TCP port to listen on (default 8135)").create();
+		Option maxSystems = OptionBuilder.withLongOpt("max-systems").withArgName("count").hasArg().withDescription("maximum number of open host connections (default 256)").create();
+		Option idleTimeout = OptionBuilder.withLongOpt("idle-timeout").withArgName("seconds").hasArg().withDescription("close host connections idle this long (default 300)").create();
+		
+		options.addOption(help);
+		options.addOption(verbose);
+		options.addOption(debug);
+		options.addOption(port);
+		options.addOption(maxSystems);
+		options.addOption(idleTimeout);
+		
+		return options;
+	}
+}
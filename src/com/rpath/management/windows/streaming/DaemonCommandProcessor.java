@@ -0,0 +1,128 @@
+package com.rpath.management.windows.streaming;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.UnknownHostException;
+
+import org.jinterop.dcom.common.JIException;
+
+import com.rpath.management.windows.ManagedSystem;
+import com.rpath.management.windows.ManagedSystemPool;
+
+/**
+ * Command processor for a single daemon client connection.
+ *
+ * The client selects a target with "connect <host> <domain> <user> <password>"
+ * and every following command is run against a system borrowed from the
+ * shared pool for just the duration of that command.
+ */
+public class DaemonCommandProcessor extends CommandProcessor {
+	private ManagedSystemPool pool;
+	
+	// Shared with pipelined workers of the same client connection.
+	private Target target;
+	
+	/**
+	 * System the client has connected to.
+	 */
+	private static class Target {
+		String host = null;
+		String domain = null;
+		String user = null;
+		String password = null;
+	}
+	
+	public DaemonCommandProcessor(ManagedSystemPool pool, InputStream input, PrintStream output, PrintStream error) {
+		this(pool, new Target(), input, output, error);
+	}
+	
+	private DaemonCommandProcessor(ManagedSystemPool pool, Target target, InputStream input, PrintStream output, PrintStream error) {
+		super(null, input, output, error);
+		this.pool = pool;
+		this.target = target;
+	}
+	
+	@Override
+	protected IPC createWorker(PrintStream output) {
+		return new DaemonCommandProcessor(this.pool, this.target, null, output, this.error);
+	}
+	
+	@Override
+	protected boolean isBarrier() {
+		// Commands sent after a connect must go to the new target.
+		return this.command[0].equals("connect");
+	}
+	
+	@Override
+	protected void processCommand() {
+		if (this.command[0].equals("connect")) {
+			this.handleConnect();
+			return;
+		}
+		
+		if (this.target.host == null) {
+			this.reportError("not connected");
+			return;
+		}
+		
+		ManagedSystem system = this.borrow();
+		if (system == null)
+			return;
+		
+		boolean ok = false;
+		try {
+			this.setSystem(system);
+			super.processCommand();
+			ok = true;
+		} finally {
+			this.setSystem(null);
+			if (ok)
+				this.pool.release(system);
+			else
+				this.pool.invalidate(system);
+		}
+	}
+	
+	private void handleConnect() {
+		if (this.getCommandLength() != 4) {
+			this.reportError("connect <host> <domain> <user> <password>");
+			return;
+		}
+		
+		this.target.host = this.command[1];
+		this.target.domain = this.command[2];
+		this.target.user = this.command[3];
+		this.target.password = this.command[4];
+		
+		// Make sure the credentials work before acknowledging
+		ManagedSystem system = this.borrow();
+		if (system == null) {
+			this.target.host = null;
+			return;
+		}
+		this.pool.release(system);
+		
+		this.startOutput();
+		this.writeOutput("connected");
+		this.endOutput();
+	}
+	
+	/**
+	 * Borrow a system for the current target, reporting any failure.
+	 * @return the system, or null if the connection failed
+	 */
+	private ManagedSystem borrow() {
+		try {
+			Target target = this.target;
+			return this.pool.borrow(target.host, target.domain, target.user, target.password);
+		} catch (UnknownHostException e) {
+			this.reportError("unknown host " + this.target.host);
+		} catch (JIException e) {
+			this.reportError(e.getErrorCode());
+		} catch (InterruptedException e) {
+			this.reportError("interrupted");
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,116 @@
+package com.rpath.management.windows.streaming;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes responses as length prefixed binary frames.
+ *
+ * All integers are big endian. Each frame is:
+ *
+ *   int32   number of bytes that follow
+ *   byte    frame type
+ *   int32   status
+ *   int16   length of the request id
+ *   byte[]  request id, UTF-8
+ *   byte[]  payload, UTF-8, the rest of the frame
+ *
+ * A response is a START frame ('S', status is the return code), DATA frames
+ * ('D', one output record each) and an END frame ('E'), or an ERROR frame
+ * ('X', status is the error code or -1, payload is the error text) in place
+ * of any of those. TRACE frames ('T', payload is a stack trace) may come
+ * before the frame that ends a response. Payloads are never escaped, and the
+ * stream is only flushed when a response ends.
+ */
+public class FrameResponseWriter implements ResponseWriter {
+	public static final byte START = (byte)'S';
+	public static final byte DATA = (byte)'D';
+	public static final byte END = (byte)'E';
+	public static final byte ERROR = (byte)'X';
+	public static final byte TRACE = (byte)'T';
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] EMPTY = new byte[0];
+	
+	private DataOutputStream out;
+	private byte[] id;
+	
+	/**
+	 * Constructor
+	 * @param out stream to write to
+	 * @param id request id to tag frames with, or null
+	 */
+	public FrameResponseWriter(OutputStream out, String id) {
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+		this.id = id == null ? EMPTY : id.getBytes(UTF8);
+	}
+	
+	public void startOutput(int rc) {
+		this.writeFrame(START, rc, EMPTY);
+	}
+	
+	public void writeOutput(String output) {
+		this.writeFrame(DATA, 0, output.getBytes(UTF8));
+	}
+	
+	public void writeRecord(String[] names, Object[] values) {
+		this.writeOutput(TextResponseWriter.formatRecord(values));
+	}
+	
+	public void endOutput() {
+		this.writeFrame(END, 0, EMPTY);
+		this.flush();
+	}
+	
+	public void reportError(String error) {
+		this.writeFrame(ERROR, parseErrorCode(error), error.getBytes(UTF8));
+		this.flush();
+	}
+	
+	public void reportException(Exception e) {
+		ByteArrayOutputStream trace = new ByteArrayOutputStream();
+		PrintStream ps = new PrintStream(trace);
+		e.printStackTrace(ps);
+		ps.flush();
+		this.writeFrame(TRACE, 0, trace.toByteArray());
+	}
+	
+	public void flush() {
+		try {
+			this.out.flush();
+		} catch (IOException e) {
+			// Same as PrintStream, the reader going away is noticed on input.
+		}
+	}
+	
+	private void writeFrame(byte type, int status, byte[] payload) {
+		try {
+			this.out.writeInt(1 + 4 + 2 + this.id.length + payload.length);
+			this.out.writeByte(type);
+			this.out.writeInt(status);
+			this.out.writeShort(this.id.length);
+			this.out.write(this.id);
+			this.out.write(payload);
+		} catch (IOException e) {
+		}
+	}
+	
+	/**
+	 * Get the numeric code from an error message such as "0x80041002".
+	 * @return the code or -1 if the message isn't a number
+	 */
+	static int parseErrorCode(String error) {
+		try {
+			if (error.startsWith("0x"))
+				return (int)Long.parseLong(error.substring(2), 16);
+			return Integer.parseInt(error);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -1,108 +1,372 @@
 package com.rpath.management.windows.streaming;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.io.Reader;
-import java.io.StreamTokenizer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Class to implement IPC interface.
+ *
+ * By default commands are handled one at a time in the order they are read.
+ * Sending "protocol 2" switches the connection to pipelined mode, where every
+ * command line starts with a request id chosen by the client. Commands then
+ * run concurrently, each with its own buffered output, and every response
+ * marker carries the request id, e.g. "= 7 START OUTPUT 0". Responses are
+ * written whole, in the order the commands finish. "<id> cancel <other id>"
+ * abandons a request that hasn't finished yet. "protocol 3" is the same but
+ * responses are written as binary frames, see FrameResponseWriter.
+ *
+ * Output is text by default; setFormat("jsonl") selects JSON Lines instead,
+ * see JsonResponseWriter.
+ *
+ * Arguments are separated by single spaces and may be enclosed in double
+ * quotes. Within quotes, \" and \\ stand for a literal quote and backslash;
+ * any other backslash is kept as is.
  */
 public abstract class IPC {
-	private static final String MARKER = "= ";
-	private static final int COMMAND_SIZE = 10;
+	private static final String PROTOCOL = "protocol";
+	private static final String PIPELINED = "2";
+	private static final String FRAMED = "3";
+	private static final String CANCEL = "cancel";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int COMMAND_SIZE = 16;
+	private static final int ARGUMENT_SIZE = 256;
+	private static final int READ_SIZE = 8192;
 	private static final byte QUOTE = (byte)'"';
 	private static final byte SPACE = (byte)' ';
 	private static final byte NEWLINE = (byte)'\n';
+	private static final byte BACKSLASH = (byte)'\\';
 	
 	private int pos;
 	private boolean inQuotedString;
+	private boolean escaped;
 	
-	private StreamTokenizer in;
+	// Bytes of the argument being read, reused for every argument.
+	private byte[] argument = new byte[IPC.ARGUMENT_SIZE];
+	private int length;
+	
+	private InputStream in;
 	protected PrintStream out;
 	protected PrintStream error;
 	protected String[] command;
 
+	private ResponseWriter writer;
+	
+	private boolean pipelined = false;
+	private boolean framed = false;
+	private boolean json = false;
+	private ExecutorService workers = null;
+	private ConcurrentHashMap<String, FutureTask<Object>> pending = null;
+
+	/**
+	 * Constructor
+	 * @param input command stream, may be null for a processor that only
+	 *        runs commands handed to it
+	 * @param output response stream
+	 * @param error diagnostic stream
+	 */
 	public IPC(InputStream input, PrintStream output, PrintStream error) {
 		this.out = output;
 		this.error = error;
+		this.in = input;
+		this.writer = new TextResponseWriter(output, null);
 
+		this.command = new String[IPC.COMMAND_SIZE];
 		this.reset();
-		
-		Reader r = new BufferedReader(new InputStreamReader(input));
-		this.in = new StreamTokenizer(r);
-		this.in.resetSyntax();
-		this.in.eolIsSignificant(true);
+	}
+	
+	/**
+	 * Select the output format.
+	 * @param format "text" or "jsonl"
+	 */
+	public void setFormat(String format) {
+		if (format.equals("text"))
+			this.json = false;
+		else if (format.equals("jsonl"))
+			this.json = true;
+		else
+			throw new IllegalArgumentException("unknown output format " + format);
+		this.writer = this.createWriter(this.out, null);
 	}
 	
 	public void run() throws IOException, Exception {
-		while (this.in.nextToken() != StreamTokenizer.TT_EOF) {
-			//System.err.println("state: " + (char)this.in.ttype + "(" + this.in.ttype + ")");
-			switch(this.in.ttype) {
-				case IPC.SPACE:
-					this.handleSpace();
-					break;
-				case IPC.QUOTE:
-					this.handleQuote();
-					break;
-				case IPC.NEWLINE:
-					//this.printCommand();
-					this.processCommand();
-					this.reset();
-					break;
-				default:
-					this.append();
-			}
+		byte[] buffer = new byte[IPC.READ_SIZE];
+		int count;
+		while ((count = this.in.read(buffer)) != -1) {
+			for (int i=0; i<count; i++)
+				this.consume(buffer[i]);
 		}
 		
+		if (this.pipelined) {
+			// Let outstanding requests finish and write their responses.
+			this.workers.shutdown();
+			this.workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
 	}
-
-	private void append() {
-		byte b = (byte)this.in.ttype;
-		byte [] ba = {b, };
-		String s = new String(ba);
-
-		//System.err.println("pos: " + this.pos);
-		//System.err.println("s: " + s);
-		//System.err.println("foo: " + this.command[this.pos]);
+	
+	private void consume(byte b) {
+		if (this.escaped) {
+			this.escaped = false;
+			if (b != IPC.QUOTE && b != IPC.BACKSLASH)
+				this.append(IPC.BACKSLASH);
+			this.append(b);
+			return;
+		}
 		
-		String foo = this.command[this.pos];
-		String bar = foo.concat(s);
-		this.command[this.pos] = bar;
-		//this.command[this.pos] = this.command[this.pos].concat(s); 
+		switch (b) {
+			case IPC.SPACE:
+				if (this.inQuotedString) {
+					this.append(b);
+				} else {
+					this.endArgument();
+					this.pos++;
+					if (this.pos == this.command.length)
+						this.command = Arrays.copyOf(this.command, this.command.length * 2);
+				}
+				break;
+			case IPC.QUOTE:
+				this.inQuotedString = !this.inQuotedString;
+				break;
+			case IPC.BACKSLASH:
+				if (this.inQuotedString)
+					this.escaped = true;
+				else
+					this.append(b);
+				break;
+			case IPC.NEWLINE:
+				this.endArgument();
+				//this.printCommand();
+				this.dispatch();
+				this.reset();
+				break;
+			default:
+				this.append(b);
+		}
 	}
 	
-	private void handleSpace() {
-		if (!this.inQuotedString) {
-			this.pos++;
-			this.command[this.pos] = new String(); 
+	private void dispatch() {
+		if (!this.pipelined) {
+			if (this.command[0].equals(IPC.PROTOCOL))
+				this.handleProtocol();
+			else
+				this.processCommand();
+			return;
+		}
+		
+		String id = this.command[0];
+		if (this.pos == 0) {
+			this.respond(id, "missing command");
+		} else if (this.command[1].equals(IPC.CANCEL)) {
+			this.handleCancel(id);
 		} else {
-			this.append();
+			this.submit(id);
+		}
+	}
+	
+	private void handleProtocol() {
+		String version = this.pos == 1 ? this.command[1] : "";
+		if (!version.equals(IPC.PIPELINED) && !version.equals(IPC.FRAMED)) {
+			this.reportError("unsupported protocol");
+			return;
 		}
+		
+		this.pipelined = true;
+		this.pending = new ConcurrentHashMap<String, FutureTask<Object>>();
+		this.workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "IPC worker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		// The acknowledgement is still in the old format.
+		this.startOutput();
+		this.writeOutput(version);
+		this.endOutput();
+		this.writer.flush();
+		
+		this.framed = version.equals(IPC.FRAMED);
+	}
+	
+	/**
+	 * Create a writer for one response.
+	 * @param output stream to write to
+	 * @param id request id
+	 */
+	private ResponseWriter createWriter(PrintStream output, String id) {
+		if (this.framed)
+			return new FrameResponseWriter(output, id);
+		if (this.json)
+			return new JsonResponseWriter(output, id);
+		return new TextResponseWriter(output, id);
 	}
 	
-	private void handleQuote() {
-		if (this.inQuotedString) {
-			this.inQuotedString = false;
+	/**
+	 * Hand the current command to a worker processor.
+	 * @param id request id
+	 */
+	private void submit(final String id) {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final IPC worker = this.createWorker(new PrintStream(buffer));
+		worker.json = this.json;
+		worker.writer = this.createWriter(worker.out, id);
+		worker.pos = this.pos - 1;
+		worker.command = new String[this.command.length - 1];
+		System.arraycopy(this.command, 1, worker.command, 0, worker.command.length);
+		
+		// The worker needs its own task to tell it apart from a later
+		// request that reuses the id after a cancel
+		final AtomicReference<FutureTask<Object>> self = new AtomicReference<FutureTask<Object>>();
+		FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+			public void run() {
+				worker.runCommand();
+				finish(id, self.get(), buffer);
+			}
+		}, null);
+		self.set(task);
+		
+		if (this.pending.putIfAbsent(id, task) != null) {
+			this.respond(id, "duplicate request id");
+			return;
+		}
+		
+		if (worker.isBarrier()) {
+			// Wait for everything sent before, then run in line so that
+			// everything sent after sees the effects.
+			this.drain(task);
+			task.run();
 		} else {
-			this.inQuotedString = true;
+			this.workers.execute(task);
 		}
 	}
+	
+	private void handleCancel(String id) {
+		if (this.pos != 2) {
+			this.respond(id, "cancel <id>");
+			return;
+		}
+		
+		String target = this.command[2];
+		FutureTask<Object> task = this.pending.remove(target);
+		if (task == null) {
+			this.respond(id, "no such request " + target);
+			return;
+		}
+		
+		// Whatever the worker produces from here on is dropped.
+		task.cancel(true);
+		this.respond(target, "cancelled");
+		this.respond(id, null);
+	}
+	
+	/**
+	 * Wait for all pending requests other than the given one.
+	 */
+	private void drain(FutureTask<Object> except) {
+		for (FutureTask<Object> task : this.pending.values()) {
+			if (task == except)
+				continue;
+			try {
+				task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+			} catch (CancellationException e) {
+			}
+		}
+	}
+	
+	/**
+	 * Write a worker's response unless the request was cancelled. A
+	 * cancelled worker may still be running when its id is reused, so only
+	 * its own entry is removed.
+	 */
+	private void finish(String id, FutureTask<Object> task, ByteArrayOutputStream buffer) {
+		if (!this.pending.remove(id, task))
+			return;
+		
+		this.write(buffer);
+	}
+	
+	/**
+	 * Answer a request from the reader thread.
+	 * @param id request id
+	 * @param error error message, or null for an empty successful response
+	 */
+	private void respond(String id, String error) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		ResponseWriter response = this.createWriter(new PrintStream(buffer), id);
+		if (error == null) {
+			response.startOutput(0);
+			response.endOutput();
+		} else {
+			response.reportError(error);
+		}
+		response.flush();
+		this.write(buffer);
+	}
+	
+	/**
+	 * Write a complete response so that it isn't interleaved with others.
+	 */
+	private void write(ByteArrayOutputStream buffer) {
+		byte[] data = buffer.toByteArray();
+		synchronized (this.out) {
+			this.out.write(data, 0, data.length);
+			this.out.flush();
+		}
+	}
+	
+	/**
+	 * Run the current command as a pipelined worker.
+	 */
+	private void runCommand() {
+		try {
+			this.processCommand();
+		} catch (RuntimeException e) {
+			e.printStackTrace(this.error);
+			this.reportError(1);
+		}
+		this.writer.flush();
+	}
+
+	private void append(byte b) {
+		if (this.length == this.argument.length)
+			this.argument = Arrays.copyOf(this.argument, this.argument.length * 2);
+		this.argument[this.length++] = b;
+	}
+	
+	private void endArgument() {
+		this.command[this.pos] = new String(this.argument, 0, this.length, IPC.UTF8);
+		this.length = 0;
+	}
 		
 	protected void reset() {
+		// Workers get a copy of the arguments, so the array can be reused.
+		Arrays.fill(this.command, 0, Math.min(this.pos + 1, this.command.length), null);
 		this.pos = 0;
+		this.length = 0;
 		this.inQuotedString = false;
-		this.command = new String[IPC.COMMAND_SIZE];
-		this.command[this.pos] = new String();
+		this.escaped = false;
+		this.command[this.pos] = "";
 	}
 	
 	public void reportError(String error) {
-		this.out.print(IPC.MARKER);
-		this.out.print("ERROR ");
-		this.out.println(error);
+		this.writer.reportError(error);
 	}
 	
 	public void reportError(int errorCode) {
@@ -110,11 +374,7 @@ public abstract class IPC {
 	}
 	
 	public void reportException(Exception e) {
-		this.out.print(IPC.MARKER);
-		this.out.println("START STACKTRACE");
-		e.printStackTrace(this.out);
-		this.out.print(IPC.MARKER);
-		this.out.println("END STACKTRACE");
+		this.writer.reportException(e);
 	}
 	
 	protected void startOutput() {
@@ -122,23 +382,53 @@ public abstract class IPC {
 	}
 	
 	protected void startOutput(int rc) {
-		this.out.print(IPC.MARKER);
-		this.out.println("START OUTPUT " + rc);
+		this.writer.startOutput(rc);
 	}
 	
 	protected void writeOutput(String output) {
-		this.out.println(output);
+		this.writer.writeOutput(output);
 	}
 	
+	/**
+	 * Write each non-null element of an array as its own line.
+	 */
 	protected void writeOutput(String output[]) {
+		if (output == null)
+			return;
 		for (int i=0; i<output.length; i++) {
-			this.out.println(output[i]);
+			if (output[i] != null)
+				this.writer.writeOutput(output[i]);
 		}
 	}
 	
+	/**
+	 * Write one result row.
+	 * @param names column names
+	 * @param values decoded values, see WbemRecord
+	 */
+	protected void writeRecord(String[] names, Object[] values) {
+		this.writer.writeRecord(names, values);
+	}
+	
+	/**
+	 * Check if output is structured, in which case rows should be written
+	 * with writeRecord rather than formatted as text.
+	 */
+	protected boolean isStructuredOutput() {
+		return this.json;
+	}
+	
 	protected void endOutput() {
-		this.out.print(IPC.MARKER);
-		this.out.println("END OUTPUT");
+		this.writer.endOutput();
+	}
+	
+	/**
+	 * End output that has already been started with an error in place of
+	 * the END OUTPUT marker.
+	 * @param error error to report
+	 */
+	protected void abortOutput(String error) {
+		this.writer.reportError(error);
 	}
 	
 	protected void printCommand() {
@@ -153,5 +443,19 @@ public abstract class IPC {
 		return this.pos;
 	}
 	
+	/**
+	 * Check if the current command has to run on its own in pipelined mode,
+	 * after all earlier requests and before any later ones.
+	 */
+	protected boolean isBarrier() {
+		return false;
+	}
+	
+	/**
+	 * Create a processor for running one pipelined command.
+	 * @param output buffer for the command's response
+	 */
+	protected abstract IPC createWorker(PrintStream output);
+	
 	protected abstract void processCommand();
 }
\ No newline at end of file
@@ -0,0 +1,114 @@
+package com.rpath.management.windows.streaming;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+
+/**
+ * Writes responses as JSON Lines, one object per line.
+ *
+ *   {"type":"row","data":{"Name":"W32Time","ProcessId":740}}
+ *   {"type":"line","data":"free form output"}
+ *   {"type":"end","rc":0}
+ *   {"type":"error","code":2147749890,"message":"0x80041002"}
+ *   {"type":"trace","message":"..."}
+ *
+ * With pipelining every object also has an "id" member. A response is any
+ * number of row and line objects followed by an end or error object. Output
+ * is flushed once per response.
+ */
+public class JsonResponseWriter implements ResponseWriter {
+	private JsonWriter json;
+	private String id;
+	private int rc = 0;
+	
+	/**
+	 * Constructor
+	 * @param out stream to write to
+	 * @param id request id to tag objects with, or null
+	 */
+	public JsonResponseWriter(OutputStream out, String id) {
+		this.json = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8"))));
+		this.id = id;
+	}
+	
+	public void startOutput(int rc) {
+		// Nothing to write, rows stand on their own.
+		this.rc = rc;
+	}
+	
+	public void writeOutput(String output) {
+		try {
+			this.begin("line").name("data").value(output);
+			this.end();
+		} catch (IOException e) {
+		}
+	}
+	
+	public void writeRecord(String[] names, Object[] values) {
+		try {
+			this.begin("row").name("data").beginObject();
+			for (int i=0; i<names.length; i++)
+				this.json.name(names[i]).value(values[i]);
+			this.json.endObject();
+			this.end();
+		} catch (IOException e) {
+		}
+	}
+	
+	public void endOutput() {
+		try {
+			this.begin("end").name("rc").value(this.rc);
+			this.end();
+		} catch (IOException e) {
+		}
+		this.flush();
+	}
+	
+	public void reportError(String error) {
+		try {
+			// HRESULTs are reported unsigned, as they read in text mode
+			long code = FrameResponseWriter.parseErrorCode(error);
+			if (code != -1)
+				code &= 0xffffffffL;
+			this.begin("error").name("code").value(code);
+			this.json.name("message").value(error);
+			this.end();
+		} catch (IOException e) {
+		}
+		this.flush();
+	}
+	
+	public void reportException(Exception e) {
+		StringWriter trace = new StringWriter();
+		e.printStackTrace(new PrintWriter(trace));
+		try {
+			this.begin("trace").name("message").value(trace.toString());
+			this.end();
+		} catch (IOException ex) {
+		}
+	}
+	
+	public void flush() {
+		try {
+			this.json.flush();
+		} catch (IOException e) {
+		}
+	}
+	
+	private JsonWriter begin(String type) throws IOException {
+		this.json.beginObject();
+		if (this.id != null)
+			this.json.name("id").value(this.id);
+		return this.json.name("type").value(type);
+	}
+	
+	private void end() throws IOException {
+		this.json.endObject();
+		this.json.endLine();
+	}
+}
@@ -0,0 +1,185 @@
+package com.rpath.management.windows.streaming;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Minimal streaming JSON writer.
+ *
+ * Values are escaped straight into the underlying writer, no document or
+ * intermediate strings are built. Commas are tracked per nesting level, the
+ * caller is responsible for balancing begin and end calls.
+ */
+public class JsonWriter {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	private Writer out;
+	
+	// Whether the current nesting level already has a member.
+	private boolean[] started = new boolean[8];
+	private int depth = 0;
+	private boolean afterName = false;
+	
+	/**
+	 * Constructor
+	 * @param out writer to write to, should be buffered
+	 */
+	public JsonWriter(Writer out) {
+		this.out = out;
+	}
+	
+	public JsonWriter beginObject() throws IOException {
+		return this.open('{');
+	}
+	
+	public JsonWriter endObject() throws IOException {
+		return this.close('}');
+	}
+	
+	public JsonWriter beginArray() throws IOException {
+		return this.open('[');
+	}
+	
+	public JsonWriter endArray() throws IOException {
+		return this.close(']');
+	}
+	
+	/**
+	 * Write the name of the next object member.
+	 * @param name member name
+	 */
+	public JsonWriter name(String name) throws IOException {
+		this.separate();
+		this.string(name);
+		this.out.write(':');
+		this.afterName = true;
+		return this;
+	}
+	
+	public JsonWriter value(String value) throws IOException {
+		if (value == null)
+			return this.nullValue();
+		this.separate();
+		this.string(value);
+		return this;
+	}
+	
+	public JsonWriter value(long value) throws IOException {
+		this.separate();
+		this.out.write(Long.toString(value));
+		return this;
+	}
+	
+	public JsonWriter value(double value) throws IOException {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			return this.nullValue();
+		this.separate();
+		this.out.write(Double.toString(value));
+		return this;
+	}
+	
+	public JsonWriter value(boolean value) throws IOException {
+		this.separate();
+		this.out.write(value ? "true" : "false");
+		return this;
+	}
+	
+	public JsonWriter nullValue() throws IOException {
+		this.separate();
+		this.out.write("null");
+		return this;
+	}
+	
+	/**
+	 * Write a decoded WMI value: null, String, Number, Boolean or an
+	 * Object[] of those. Anything else is written as its string form.
+	 * @param value value to write
+	 */
+	public JsonWriter value(Object value) throws IOException {
+		if (value == null)
+			return this.nullValue();
+		if (value instanceof Boolean)
+			return this.value(((Boolean)value).booleanValue());
+		if (value instanceof Double || value instanceof Float)
+			return this.value(((Number)value).doubleValue());
+		if (value instanceof Number)
+			return this.value(((Number)value).longValue());
+		if (value instanceof Object[]) {
+			this.beginArray();
+			for (Object element : (Object[])value)
+				this.value(element);
+			return this.endArray();
+		}
+		return this.value(value.toString());
+	}
+	
+	/**
+	 * End the current top level value with a newline.
+	 */
+	public void endLine() throws IOException {
+		this.out.write('\n');
+		this.started[0] = false;
+	}
+	
+	public void flush() throws IOException {
+		this.out.flush();
+	}
+	
+	private JsonWriter open(char c) throws IOException {
+		this.separate();
+		this.out.write(c);
+		this.depth++;
+		if (this.depth == this.started.length) {
+			boolean[] grown = new boolean[this.started.length * 2];
+			System.arraycopy(this.started, 0, grown, 0, this.started.length);
+			this.started = grown;
+		}
+		this.started[this.depth] = false;
+		return this;
+	}
+	
+	private JsonWriter close(char c) throws IOException {
+		this.out.write(c);
+		this.depth--;
+		return this;
+	}
+	
+	/**
+	 * Write a comma if this isn't the first member at this level.
+	 */
+	private void separate() throws IOException {
+		if (this.afterName) {
+			this.afterName = false;
+			return;
+		}
+		if (this.started[this.depth] && this.depth > 0)
+			this.out.write(',');
+		this.started[this.depth] = true;
+	}
+	
+	private void string(String value) throws IOException {
+		this.out.write('"');
+		int len = value.length();
+		for (int i=0; i<len; i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"': this.out.write("\\\""); break;
+				case '\\': this.out.write("\\\\"); break;
+				case '\n': this.out.write("\\n"); break;
+				case '\r': this.out.write("\\r"); break;
+				case '\t': this.out.write("\\t"); break;
+				case '\b': this.out.write("\\b"); break;
+				case '\f': this.out.write("\\f"); break;
+				default:
+					if (c < 0x20) {
+						this.out.write("\\u00");
+						this.out.write(HEX[c >> 4]);
+						this.out.write(HEX[c & 0xf]);
+					} else {
+						this.out.write(c);
+					}
+			}
+		}
+		this.out.write('"');
+	}
+}
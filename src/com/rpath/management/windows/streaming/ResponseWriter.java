@@ -0,0 +1,33 @@
+package com.rpath.management.windows.streaming;
+
+/**
+ * Interface for writing the response to a command in the wire format the
+ * client asked for.
+ *
+ * A successful response is startOutput, any number of writeOutput calls and
+ * endOutput. A failed one is reportError, possibly after output has already
+ * been started.
+ */
+public interface ResponseWriter {
+	public void startOutput(int rc);
+	
+	public void writeOutput(String output);
+	
+	/**
+	 * Write one result row.
+	 * @param names column names
+	 * @param values decoded values, see WbemRecord
+	 */
+	public void writeRecord(String[] names, Object[] values);
+	
+	public void endOutput();
+	
+	public void reportError(String error);
+	
+	public void reportException(Exception e);
+	
+	/**
+	 * Push anything buffered to the underlying stream.
+	 */
+	public void flush();
+}
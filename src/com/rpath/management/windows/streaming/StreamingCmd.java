@@ -62,6 +62,7 @@ public class StreamingCmd {
 		}
 		
 		CommandProcessor processor = new CommandProcessor(system, System.in, System.out, System.err);
+		processor.setFormat(cmdline.getOptionValue("format", "text"));
 
 		try {
 			processor.run();
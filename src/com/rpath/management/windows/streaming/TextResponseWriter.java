@@ -0,0 +1,84 @@
+package com.rpath.management.windows.streaming;
+
+import java.io.PrintStream;
+
+/**
+ * Writes responses as text lines between "= START OUTPUT" and "= END OUTPUT"
+ * markers. With pipelining the markers carry the request id.
+ */
+public class TextResponseWriter implements ResponseWriter {
+	private static final String MARKER = "= ";
+	
+	private PrintStream out;
+	private String marker;
+	
+	/**
+	 * Constructor
+	 * @param out stream to write to
+	 * @param id request id to tag markers with, or null
+	 */
+	public TextResponseWriter(PrintStream out, String id) {
+		this.out = out;
+		this.marker = id == null ? MARKER : MARKER + id + " ";
+	}
+	
+	public void startOutput(int rc) {
+		this.out.print(this.marker);
+		this.out.println("START OUTPUT " + rc);
+	}
+	
+	public void writeOutput(String output) {
+		this.out.println(output);
+	}
+	
+	public void writeRecord(String[] names, Object[] values) {
+		this.out.println(formatRecord(values));
+	}
+	
+	public void endOutput() {
+		this.out.print(this.marker);
+		this.out.println("END OUTPUT");
+	}
+	
+	public void reportError(String error) {
+		this.out.print(this.marker);
+		this.out.print("ERROR ");
+		this.out.println(error);
+	}
+	
+	public void reportException(Exception e) {
+		this.out.print(this.marker);
+		this.out.println("START STACKTRACE");
+		e.printStackTrace(this.out);
+		this.out.print(this.marker);
+		this.out.println("END STACKTRACE");
+	}
+	
+	public void flush() {
+		this.out.flush();
+	}
+	
+	/**
+	 * Format a row as tab separated values, arrays comma separated and NULL
+	 * as an empty field.
+	 */
+	static String formatRecord(Object[] values) {
+		StringBuilder buf = new StringBuilder();
+		for (int i=0; i<values.length; i++) {
+			if (i > 0)
+				buf.append('\t');
+			Object value = values[i];
+			if (value instanceof Object[]) {
+				Object[] array = (Object[])value;
+				for (int j=0; j<array.length; j++) {
+					if (j > 0)
+						buf.append(',');
+					buf.append(array[j]);
+				}
+			} else if (value != null) {
+				buf.append(value);
+			}
+		}
+		return buf.toString();
+	}
+}